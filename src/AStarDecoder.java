@@ -0,0 +1,297 @@
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * This class finds the best sequence of tags for a line with A* search over
+ * the states of the trellis, instead of filling every state as
+ * ViterbiDecoder does. The states are expanded from the most promising one,
+ * by the log statistic of the best path to the state found so far plus an
+ * upper bound on the log probability of the rest of the line. The search
+ * stops when the end of line </s> is reached, so the states that cannot be
+ * on a path better than the best one are never expanded.
+ *
+ * The upper bound for the words after word t is the sum, over each of those
+ * words, of the best log(P(w|t)) + log(P(t|ti-1)) over its tags, where the
+ * transition is the best one into the tag from any previous tag, and of the
+ * best transition to </s>. It never underestimates the rest of the line, and
+ * only depends on t, so the first path found to a state is always the best
+ * one and the result is the exact Viterbi result.
+ *
+ * Ties are broken as in ViterbiDecoder: among previous tags giving the same
+ * statistic, the lowest tag id is kept, and states with the same priority
+ * are expanded from the earliest word. Lines that cannot be generated by the
+ * model are decoded with ViterbiDecoder.
+ *
+ * @author Shao Fei
+ *
+ */
+public class AStarDecoder {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	/**
+	 * A state of the trellis waiting to be expanded, with the statistic it
+	 * had when it was added. States whose statistic has improved since are
+	 * added again, and the old entries are skipped.
+	 */
+	private static class SearchState {
+		final int index;
+		final int tag;
+		final double logStat;
+		final double priority;
+
+		SearchState(int index, int tag, double logStat, double priority) {
+			this.index = index;
+			this.tag = tag;
+			this.logStat = logStat;
+			this.priority = priority;
+		}
+	}
+
+	// Highest priority first, ties broken by the earliest word and then the
+	// lowest tag id
+	private static final Comparator<SearchState> BEST_FIRST = new Comparator<SearchState>() {
+		@Override
+		public int compare(SearchState a, SearchState b) {
+			if (a.priority != b.priority)
+				return a.priority > b.priority ? -1 : 1;
+			if (a.index != b.index)
+				return a.index < b.index ? -1 : 1;
+			return a.tag < b.tag ? -1 : a.tag == b.tag ? 0 : 1;
+		}
+	};
+
+	private TrainedStatistics trainedStatistics;
+	private PreparedLine line;
+	private ViterbiDecoder fallbackDecoder;
+	private int numTags;
+	private int startTagId;
+	private int endTagId;
+	private int quoteTagId;
+
+	// Best log statistic found so far for word t and tag s, at index
+	// t * numTags + s, and the previous tag of that path
+	private double[] logStats;
+	private byte[] backPointers;
+	private boolean[] isExpanded;
+	// Upper bound on the log probability of the words after word t and of
+	// </s>, at index t
+	private double[] logBounds;
+
+	// Number of states expanded for the last line and for all the lines
+	private long numStatesExpanded;
+	private long totalStatesExpanded;
+	private long numLinesDecoded;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 */
+	public AStarDecoder(TrainedStatistics trainedStatistics) {
+		this.trainedStatistics = trainedStatistics;
+		line = new PreparedLine();
+		fallbackDecoder = new ViterbiDecoder(trainedStatistics);
+		numTags = ALL_POS_TAGS.size();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+		logStats = new double[0];
+		backPointers = new byte[0];
+		isExpanded = new boolean[0];
+		logBounds = new double[0];
+	}
+
+	/**
+	 * @return The number of states expanded for the last line
+	 */
+	public long getNumStatesExpanded() {
+		return numStatesExpanded;
+	}
+
+	/**
+	 * @return The number of states expanded for all the lines decoded
+	 */
+	public long getTotalStatesExpanded() {
+		return totalStatesExpanded;
+	}
+
+	public long getNumLinesDecoded() {
+		return numLinesDecoded;
+	}
+
+	/**
+	 * Find the best sequence of tags for the words in a line.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @return The best tag for each word in the line
+	 */
+	public String[] tag(String[] tokens) throws IllegalStateException {
+		int[] path = decode(tokens);
+		String[] tags = new String[path.length];
+		for (int i = 0; i < path.length; i++)
+			tags[i] = ALL_POS_TAGS.getTag(path[i]);
+		return tags;
+	}
+
+	/**
+	 * Find the best sequence of tag ids for the words in a line.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @return The id of the best tag for each word in the line
+	 */
+	public int[] decode(String[] tokens) throws IllegalStateException {
+		line.prepare(trainedStatistics, tokens);
+		return decode(line);
+	}
+
+	/**
+	 * Find the best sequence of tag ids for a line whose tokens have already
+	 * been resolved against the model.
+	 *
+	 * @param preparedLine
+	 *            The prepared line
+	 * @return The id of the best tag for each word in the line
+	 */
+	public int[] decode(PreparedLine preparedLine) throws IllegalStateException {
+		int numTokens = preparedLine.getNumTokens();
+		ensureCapacity(numTokens);
+		SparseTransitions transitions = trainedStatistics.getSparseTransitions(Constants.MIN_VALUE);
+		double[][] logTransition = transitions.getLogTransitionTable();
+		double[] logEmissions = preparedLine.getLogEmissions();
+		double[] logEmissionsAfterQuote = preparedLine.getLogEmissionsAfterQuote();
+		numStatesExpanded = 0;
+		numLinesDecoded++;
+
+		if (!computeBounds(preparedLine, transitions)) {
+			numStatesExpanded = (long) numTokens * ALL_POS_TAGS.getWordTagIds().length;
+			totalStatesExpanded += numStatesExpanded;
+			return fallbackDecoder.decode(preparedLine);
+		}
+
+		for (int i = 0; i < numTokens * numTags; i++) {
+			logStats[i] = Constants.MIN_VALUE;
+			isExpanded[i] = false;
+		}
+		double bestEndStat = Constants.MIN_VALUE;
+		int bestLastTag = -1;
+
+		// States of the first word, from <s>
+		PriorityQueue<SearchState> frontier = new PriorityQueue<SearchState>(64, BEST_FIRST);
+		double[] logStartTransition = logTransition[startTagId];
+		int[] firstTags = preparedLine.getCandidateTags(0);
+		for (int i = 0; i < preparedLine.getNumCandidateTags(0); i++) {
+			int tag = firstTags[i];
+			double logStat = logStartTransition[tag] + logEmissions[tag];
+			if (logStat > Constants.MIN_VALUE) {
+				logStats[tag] = logStat;
+				backPointers[tag] = (byte) startTagId;
+				frontier.add(new SearchState(0, tag, logStat, logStat + logBounds[0]));
+			}
+		}
+
+		while (!frontier.isEmpty()) {
+			SearchState state = frontier.poll();
+			if (state.index == numTokens) {
+				// The first path to </s> taken out is the best one
+				break;
+			}
+			int cell = state.index * numTags + state.tag;
+			if (isExpanded[cell] || state.logStat < logStats[cell])
+				continue;
+			isExpanded[cell] = true;
+			numStatesExpanded++;
+			double[] logTransitionFrom = logTransition[state.tag];
+
+			if (state.index == numTokens - 1) {
+				double logEndStat = state.logStat + logTransitionFrom[endTagId];
+				if (logEndStat > bestEndStat || (logEndStat == bestEndStat && state.tag < bestLastTag)) {
+					if (logEndStat > bestEndStat)
+						frontier.add(new SearchState(numTokens, endTagId, logEndStat, logEndStat));
+					bestEndStat = logEndStat;
+					bestLastTag = state.tag;
+				}
+				continue;
+			}
+
+			// Relax the states of the next word
+			int next = state.index + 1;
+			int nextRow = next * numTags;
+			boolean isAfterQuote = next == 1 && state.tag == quoteTagId && logEmissionsAfterQuote != null;
+			int[] nextTags = preparedLine.getCandidateTags(next);
+			for (int i = 0; i < preparedLine.getNumCandidateTags(next); i++) {
+				int tag = nextTags[i];
+				double logEmission = isAfterQuote ? logEmissionsAfterQuote[tag] : logEmissions[nextRow + tag];
+				if (logEmission == Constants.MIN_VALUE || logTransitionFrom[tag] == Constants.MIN_VALUE
+						|| isExpanded[nextRow + tag])
+					continue;
+				double logStat = state.logStat + logTransitionFrom[tag] + logEmission;
+				double bestLogStat = logStats[nextRow + tag];
+				if (logStat > bestLogStat) {
+					logStats[nextRow + tag] = logStat;
+					backPointers[nextRow + tag] = (byte) state.tag;
+					frontier.add(new SearchState(next, tag, logStat, logStat + logBounds[next]));
+				} else if (logStat == bestLogStat && state.tag < backPointers[nextRow + tag])
+					backPointers[nextRow + tag] = (byte) state.tag;
+			}
+		}
+		totalStatesExpanded += numStatesExpanded;
+
+		if (bestLastTag == -1)
+			return fallbackDecoder.decode(preparedLine);
+
+		// Back trace from the best last tag
+		int[] path = new int[numTokens];
+		path[numTokens - 1] = bestLastTag;
+		for (int t = numTokens - 1; t > 0; t--)
+			path[t - 1] = backPointers[t * numTags + path[t]];
+		return path;
+	}
+
+	/**
+	 * Compute the upper bound on the log probability of the rest of the line
+	 * after each word.
+	 *
+	 * @return false if a word cannot be emitted after any tag, in which case
+	 *         the line cannot be generated by the model
+	 */
+	private boolean computeBounds(PreparedLine preparedLine, SparseTransitions transitions) {
+		int numTokens = preparedLine.getNumTokens();
+		double[] logEmissions = preparedLine.getLogEmissions();
+		double[] logEmissionsAfterQuote = preparedLine.getLogEmissionsAfterQuote();
+		double logBound = transitions.getBestLogTransitionTo(endTagId);
+		if (logBound == Constants.MIN_VALUE)
+			return false;
+		logBounds[numTokens - 1] = logBound;
+		for (int t = numTokens - 1; t > 0; t--) {
+			int row = t * numTags;
+			double bestWordBound = Constants.MIN_VALUE;
+			int[] columnTags = preparedLine.getCandidateTags(t);
+			for (int i = 0; i < preparedLine.getNumCandidateTags(t); i++) {
+				int tag = columnTags[i];
+				double logEmission = logEmissions[row + tag];
+				if (t == 1 && logEmissionsAfterQuote != null)
+					logEmission = Math.max(logEmission, logEmissionsAfterQuote[tag]);
+				double logTransition = transitions.getBestLogTransitionTo(tag);
+				if (logEmission != Constants.MIN_VALUE && logTransition != Constants.MIN_VALUE)
+					bestWordBound = Math.max(bestWordBound, logEmission + logTransition);
+			}
+			if (bestWordBound == Constants.MIN_VALUE)
+				return false;
+			logBound += bestWordBound;
+			logBounds[t - 1] = logBound;
+		}
+		return true;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (logBounds.length >= capacity)
+			return;
+		logStats = new double[capacity * numTags];
+		backPointers = new byte[capacity * numTags];
+		isExpanded = new boolean[capacity * numTags];
+		logBounds = new double[capacity];
+	}
+
+}
@@ -0,0 +1,141 @@
+
+/**
+ * This class tags a line within a deadline. It starts with the cheapest
+ * decoding and moves on to more accurate ones while there is time left:
+ *
+ * 0. The most frequent tag of each word in the training set, NN for unknown
+ * words. This does not compute any emission.
+ *
+ * 1. ViterbiDecoder with a narrow beam.
+ *
+ * 2. ViterbiDecoder with a wide beam.
+ *
+ * 3. ViterbiDecoder with the default settings, which is exact.
+ *
+ * The emissions are computed once for the last three levels. A level is only
+ * started if it is expected to finish before the deadline, from the time per
+ * word it took on the lines before, or from the time of the level before it
+ * on the first line. A level that is started is always finished, so the
+ * deadline can be missed by at most one misjudged level. The time of a level
+ * that is skipped is lowered a little, so that it is tried again later.
+ *
+ * @author Shao Fei
+ *
+ */
+public class AnytimeDecoder {
+
+	public static final int LEVEL_MOST_FREQUENT_TAG = 0;
+	public static final int LEVEL_NARROW_BEAM = 1;
+	public static final int LEVEL_WIDE_BEAM = 2;
+	public static final int LEVEL_EXACT = 3;
+
+	public static final int NARROW_BEAM_WIDTH = 3;
+	public static final int WIDE_BEAM_WIDTH = 12;
+	// Expected time of a level relative to the level before it, before the
+	// level has been timed
+	private static final double LEVEL_COST_RATIO = 4.0;
+	// Weight of the last line in the average time per word of a level
+	private static final double TIMING_WEIGHT = 0.2;
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	private TrainedStatistics trainedStatistics;
+	private PreparedLine line;
+	// Decoders of levels 1 to 3, at the index of their level
+	private ViterbiDecoder[] decoders;
+	// Average time per word of each level, 0 if the level has not been timed
+	private double[] nanosPerToken;
+	// Number of lines that stopped at each level
+	private long[] numLinesByLevel;
+	private int defaultTagId;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 */
+	public AnytimeDecoder(TrainedStatistics trainedStatistics) {
+		this.trainedStatistics = trainedStatistics;
+		line = new PreparedLine();
+		decoders = new ViterbiDecoder[LEVEL_EXACT + 1];
+		DecoderSettings narrowBeam = new DecoderSettings();
+		narrowBeam.BEAM_WIDTH = NARROW_BEAM_WIDTH;
+		decoders[LEVEL_NARROW_BEAM] = new ViterbiDecoder(trainedStatistics, narrowBeam);
+		DecoderSettings wideBeam = new DecoderSettings();
+		wideBeam.BEAM_WIDTH = WIDE_BEAM_WIDTH;
+		decoders[LEVEL_WIDE_BEAM] = new ViterbiDecoder(trainedStatistics, wideBeam);
+		decoders[LEVEL_EXACT] = new ViterbiDecoder(trainedStatistics);
+		nanosPerToken = new double[LEVEL_EXACT + 1];
+		numLinesByLevel = new long[LEVEL_EXACT + 1];
+		defaultTagId = ALL_POS_TAGS.getId("NN");
+	}
+
+	/**
+	 * @param level
+	 *            One of the levels
+	 * @return The number of lines whose tags came from that level
+	 */
+	public long getNumLines(int level) {
+		return numLinesByLevel[level];
+	}
+
+	/**
+	 * Tag a line with the most accurate level that can finish before the
+	 * deadline.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @param deadlineNanos
+	 *            Deadline in the time of System.nanoTime()
+	 * @return The tags of the last level that was reached
+	 */
+	public AnytimeResult tag(String[] tokens, long deadlineNanos) throws IllegalStateException {
+		int numTokens = tokens.length;
+		long levelStart = System.nanoTime();
+		int[] path = new int[numTokens];
+		for (int t = 0; t < numTokens; t++) {
+			int vocabularyId = trainedStatistics.getVocabularyId(PreparedLine.getWordForEmission(tokens[t], t));
+			path[t] = vocabularyId == -1 ? defaultTagId : trainedStatistics.getMostFrequentTagId(vocabularyId);
+		}
+		int level = LEVEL_MOST_FREQUENT_TAG;
+		long levelTime = recordTime(level, levelStart, numTokens);
+
+		for (int nextLevel = LEVEL_NARROW_BEAM; nextLevel <= LEVEL_EXACT; nextLevel++) {
+			levelStart = System.nanoTime();
+			double expectedTime = nanosPerToken[nextLevel] > 0 ? nanosPerToken[nextLevel] * numTokens
+					: levelTime * LEVEL_COST_RATIO;
+			if (levelStart + expectedTime > deadlineNanos) {
+				// Lower the time of the skipped level, so that a time taken
+				// while the JIT was warming up is measured again later
+				nanosPerToken[nextLevel] *= 1 - TIMING_WEIGHT;
+				break;
+			}
+			if (nextLevel == LEVEL_NARROW_BEAM)
+				line.prepare(trainedStatistics, tokens);
+			path = decoders[nextLevel].decode(line);
+			level = nextLevel;
+			levelTime = recordTime(level, levelStart, numTokens);
+		}
+
+		numLinesByLevel[level]++;
+		String[] tags = new String[numTokens];
+		for (int t = 0; t < numTokens; t++)
+			tags[t] = ALL_POS_TAGS.getTag(path[t]);
+		return new AnytimeResult(tags, level);
+	}
+
+	/**
+	 * Add the time since levelStart to the average time per word of a level.
+	 *
+	 * @return The time since levelStart
+	 */
+	private long recordTime(int level, long levelStart, int numTokens) {
+		long levelTime = System.nanoTime() - levelStart;
+		double lineNanosPerToken = (double) levelTime / Math.max(1, numTokens);
+		if (nanosPerToken[level] == 0)
+			nanosPerToken[level] = lineNanosPerToken;
+		else
+			nanosPerToken[level] += TIMING_WEIGHT * (lineNanosPerToken - nanosPerToken[level]);
+		return levelTime;
+	}
+
+}
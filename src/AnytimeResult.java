@@ -0,0 +1,40 @@
+
+/**
+ * The tags found by AnytimeDecoder for a line before its deadline, and the
+ * level of decoding they come from.
+ *
+ * @author Shao Fei
+ *
+ */
+public class AnytimeResult {
+
+	private String[] tags;
+	private int level;
+
+	/**
+	 * @param tags
+	 *            Tag of each word in the line
+	 * @param level
+	 *            One of the levels of AnytimeDecoder
+	 */
+	public AnytimeResult(String[] tags, int level) {
+		this.tags = tags;
+		this.level = level;
+	}
+
+	public String[] getTags() {
+		return tags;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return true if the tags are those of the exact Viterbi algorithm
+	 */
+	public boolean isExact() {
+		return level == AnytimeDecoder.LEVEL_EXACT;
+	}
+
+}
@@ -0,0 +1,318 @@
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class runs the Viterbi algorithm on many lines at once. The lines are
+ * sorted by length and cut into groups of up to MAX_GROUP_SIZE lines of
+ * similar length, and the lines of a group are advanced through the trellis
+ * together: the trellis of a group is stored with the lines as the innermost
+ * dimension, so that each transition probability is read once per group
+ * instead of once per line, and the inner loop runs over consecutive cells
+ * with MaxPlusKernel.maxPlusLines().
+ *
+ * The lines of a group are kept from the longest to the shortest, so the
+ * lines that still have a word at a column are the first ones of the group.
+ * A line that has ended is padded by leaving it out of the inner loop, which
+ * gives it the same result as a neutral emission would, without the work.
+ *
+ * As in ViterbiDecoder, only the previous tags that can transit to a tag and
+ * that survive on at least one line of the group are visited, and the tags
+ * that no line of the group can emit are skipped. Only the statistics are
+ * computed for the whole group. The best previous tag is found on the back
+ * trace, for the cells of the best path only, as the first previous tag
+ * whose statistic gives the statistic of the cell again.
+ *
+ * Produces the same tags as ViterbiDecoder with the default DecoderSettings.
+ * With approximate settings (beam, tag dictionary, minimum transition
+ * probability), each line is decoded with ViterbiDecoder instead. So are the
+ * lines with at least LONG_LINE_MIN_TOKENS or PARALLEL_MIN_TOKENS words, and
+ * the lines left alone in a group, which gain nothing from being grouped.
+ *
+ * @author Shao Fei
+ *
+ */
+public class BatchDecoder {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+	// Maximum number of lines advanced together
+	public static final int MAX_GROUP_SIZE = 64;
+
+	private TrainedStatistics trainedStatistics;
+	private boolean isApproximate;
+	private int longLineMinTokens;
+	private int parallelMinTokens;
+	private ViterbiDecoder lineDecoder;
+	private int numTags;
+	private int[] stateIds;
+	private int startTagId;
+	private int endTagId;
+	private int defaultTagId;
+	private int quoteTagId;
+
+	// One prepared line per line in a group
+	private PreparedLine[] preparedLines;
+	// Number of lines of a group that have a word at each index
+	private int[] numActiveLines;
+	// Trellis of a group. The cell of line b, word t and tag s is at
+	// [t * numTags + s][b]
+	private double[][] scores;
+	// Best statistic over the previous tags of a cell, before the emission,
+	// for each line of a group
+	private double[] bestScores;
+	// Whether a tag survives on at least one line of the group in the
+	// previous column
+	private boolean[] isPrevLive;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 * @param settings
+	 *            Settings passed on to ViterbiDecoder if they are approximate
+	 */
+	public BatchDecoder(TrainedStatistics trainedStatistics, DecoderSettings settings) {
+		this.trainedStatistics = trainedStatistics;
+		isApproximate = settings.isApproximate();
+		longLineMinTokens = settings.LONG_LINE_MIN_TOKENS;
+		parallelMinTokens = settings.PARALLEL_MIN_TOKENS;
+		lineDecoder = new ViterbiDecoder(trainedStatistics, settings);
+		numTags = ALL_POS_TAGS.size();
+		stateIds = ALL_POS_TAGS.getWordTagIds();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		defaultTagId = ALL_POS_TAGS.getId("NN");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+
+		preparedLines = new PreparedLine[MAX_GROUP_SIZE];
+		for (int b = 0; b < MAX_GROUP_SIZE; b++)
+			preparedLines[b] = new PreparedLine();
+		numActiveLines = new int[0];
+		scores = new double[0][];
+		bestScores = new double[MAX_GROUP_SIZE];
+		isPrevLive = new boolean[numTags];
+	}
+
+	public long getNumStatesPruned() {
+		return lineDecoder.getNumStatesPruned();
+	}
+
+	/**
+	 * Find the best sequence of tags for each of the lines.
+	 *
+	 * @param lines
+	 *            The words of each line
+	 * @return The best tag for each word of each line, in the order of lines
+	 */
+	public String[][] tag(String[][] lines) throws IllegalStateException {
+		int[][] paths = decode(lines);
+		String[][] tags = new String[lines.length][];
+		for (int i = 0; i < lines.length; i++) {
+			tags[i] = new String[paths[i].length];
+			for (int t = 0; t < paths[i].length; t++)
+				tags[i][t] = ALL_POS_TAGS.getTag(paths[i][t]);
+		}
+		return tags;
+	}
+
+	/**
+	 * Find the best sequence of tag ids for each of the lines.
+	 *
+	 * @param lines
+	 *            The words of each line
+	 * @return The id of the best tag for each word of each line, in the order
+	 *         of lines
+	 */
+	public int[][] decode(final String[][] lines) throws IllegalStateException {
+		int[][] paths = new int[lines.length][];
+		if (isApproximate) {
+			for (int i = 0; i < lines.length; i++)
+				paths[i] = lineDecoder.decode(lines[i]);
+			return paths;
+		}
+
+		// Sort the lines from the longest, keeping the original indices to
+		// write the results back in order
+		Integer[] order = new Integer[lines.length];
+		for (int i = 0; i < lines.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return lines[b].length - lines[a].length;
+			}
+		});
+
+		int start = 0;
+		while (start < lines.length) {
+			int length = lines[order[start]].length;
+			if (length == 0) {
+				paths[order[start++]] = new int[0];
+				continue;
+			}
+			if ((longLineMinTokens > 0 && length >= longLineMinTokens)
+					|| (parallelMinTokens > 0 && length >= parallelMinTokens)) {
+				paths[order[start]] = lineDecoder.decode(lines[order[start]]);
+				start++;
+				continue;
+			}
+			int end = start + 1;
+			while (end < lines.length && end - start < MAX_GROUP_SIZE && lines[order[end]].length > 0)
+				end++;
+			if (end - start == 1)
+				paths[order[start]] = lineDecoder.decode(lines[order[start]]);
+			else
+				decodeGroup(lines, order, start, end - start, paths);
+			start = end;
+		}
+		return paths;
+	}
+
+	/**
+	 * Decode a group of lines together. The lines are in decreasing order of
+	 * length.
+	 */
+	private void decodeGroup(String[][] lines, Integer[] order, int start, int groupSize, int[][] paths) {
+		int maxTokens = lines[order[start]].length;
+		ensureCapacity(maxTokens);
+		SparseTransitions transitions = trainedStatistics.getSparseTransitions(Constants.MIN_VALUE);
+		double[][] logTransition = transitions.getLogTransitionTable();
+
+		Arrays.fill(numActiveLines, 0, maxTokens, 0);
+		for (int b = 0; b < groupSize; b++) {
+			preparedLines[b].prepare(trainedStatistics, lines[order[start + b]]);
+			numActiveLines[preparedLines[b].getNumTokens() - 1]++;
+		}
+		for (int t = maxTokens - 2; t >= 0; t--)
+			numActiveLines[t] += numActiveLines[t + 1];
+
+		// Initialisation step for the first word
+		for (int tag : stateIds)
+			for (int b = 0; b < groupSize; b++)
+				scores[tag][b] = logTransition[startTagId][tag] + preparedLines[b].getLogEmissions()[tag];
+
+		// Recursion step for the 2nd word to the last word
+		for (int t = 1; t < maxTokens; t++)
+			computeColumn(t, numActiveLines[t], transitions);
+
+		// Termination step and back trace, line by line
+		for (int b = 0; b < groupSize; b++)
+			paths[order[start + b]] = backTrace(b, logTransition);
+	}
+
+	/**
+	 * Compute the statistics of a trellis column for the lines of the group
+	 * that have a word at index t.
+	 */
+	private void computeColumn(int t, int numLines, SparseTransitions transitions) {
+		double[][] logTransition = transitions.getLogTransitionTable();
+		int row = t * numTags;
+		int prevRow = (t - 1) * numTags;
+
+		// Previous tags that survive on at least one line
+		for (int prevTag : stateIds) {
+			double[] prevScores = scores[prevRow + prevTag];
+			boolean isLive = false;
+			for (int b = 0; b < numLines && !isLive; b++)
+				isLive = prevScores[b] > Constants.MIN_VALUE;
+			isPrevLive[prevTag] = isLive;
+		}
+
+		// The second word has a different emission when the previous tag is
+		// ``, which is then added on its own
+		boolean hasQuote = t == 1 && isPrevLive[quoteTagId];
+		for (int tag : stateIds) {
+			double[] cellScores = scores[row + tag];
+			boolean canEmit = false;
+			for (int b = 0; b < numLines && !canEmit; b++)
+				canEmit = preparedLines[b].getLogEmissions()[row + tag] != Constants.MIN_VALUE
+						|| (hasQuote && getLogEmissionAfterQuote(b, tag) != Constants.MIN_VALUE);
+			if (!canEmit) {
+				Arrays.fill(cellScores, 0, numLines, Constants.MIN_VALUE);
+				continue;
+			}
+
+			Arrays.fill(bestScores, 0, numLines, Constants.MIN_VALUE);
+			for (int prevTag : transitions.getPredecessorTagIds(tag))
+				if (isPrevLive[prevTag] && !(hasQuote && prevTag == quoteTagId))
+					MaxPlusKernel.maxPlusLines(scores[prevRow + prevTag], logTransition[prevTag][tag], bestScores,
+							numLines);
+			// Adding the emission after the maximum gives the same result as
+			// adding it to each previous tag, as rounding keeps the order
+			for (int b = 0; b < numLines; b++) {
+				double stateStat = bestScores[b] + preparedLines[b].getLogEmissions()[row + tag];
+				cellScores[b] = stateStat > Constants.MIN_VALUE ? stateStat : Constants.MIN_VALUE;
+			}
+			if (hasQuote && logTransition[quoteTagId][tag] != Constants.MIN_VALUE) {
+				double[] prevScores = scores[prevRow + quoteTagId];
+				for (int b = 0; b < numLines; b++) {
+					double stateStat = prevScores[b] + logTransition[quoteTagId][tag] + getLogEmissionAfterQuote(b, tag);
+					if (stateStat > cellScores[b])
+						cellScores[b] = stateStat;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Termination step and back trace of one line of the group. The best
+	 * previous tag of a cell is the first previous tag, in increasing order
+	 * of id as in ViterbiDecoder, whose statistic gives the statistic of the
+	 * cell, added up in the same order as in computeColumn().
+	 */
+	private int[] backTrace(int b, double[][] logTransition) {
+		PreparedLine line = preparedLines[b];
+		int numTokens = line.getNumTokens();
+		double[] logEmissions = line.getLogEmissions();
+
+		double bestLastStateStat = Constants.MIN_VALUE;
+		int bestLastTag = defaultTagId;
+		for (int prevTag : stateIds) {
+			double candidateStateStat = scores[(numTokens - 1) * numTags + prevTag][b]
+					+ logTransition[prevTag][endTagId];
+			if (candidateStateStat > bestLastStateStat) {
+				bestLastStateStat = candidateStateStat;
+				bestLastTag = prevTag;
+			}
+		}
+
+		int[] path = new int[numTokens];
+		path[numTokens - 1] = bestLastTag;
+		for (int t = numTokens - 1; t > 0; t--) {
+			int tag = path[t];
+			double stateStat = scores[t * numTags + tag][b];
+			int bestPrevTag = defaultTagId;
+			if (stateStat > Constants.MIN_VALUE) {
+				for (int prevTag : stateIds) {
+					double logEmission = t == 1 && prevTag == quoteTagId ? getLogEmissionAfterQuote(b, tag)
+							: logEmissions[t * numTags + tag];
+					double candidateStateStat = scores[(t - 1) * numTags + prevTag][b] + logTransition[prevTag][tag]
+							+ logEmission;
+					if (candidateStateStat == stateStat) {
+						bestPrevTag = prevTag;
+						break;
+					}
+				}
+			}
+			path[t - 1] = bestPrevTag;
+		}
+		return path;
+	}
+
+	private double getLogEmissionAfterQuote(int b, int tag) {
+		double[] logEmissionsAfterQuote = preparedLines[b].getLogEmissionsAfterQuote();
+		return logEmissionsAfterQuote == null ? preparedLines[b].getLogEmissions()[numTags + tag]
+				: logEmissionsAfterQuote[tag];
+	}
+
+	private void ensureCapacity(int numTokens) {
+		if (numActiveLines.length < numTokens)
+			numActiveLines = new int[numTokens];
+		if (scores.length < numTokens * numTags) {
+			double[][] newScores = Arrays.copyOf(scores, numTokens * numTags);
+			for (int cell = scores.length; cell < newScores.length; cell++)
+				newScores[cell] = new double[MAX_GROUP_SIZE];
+			scores = newScores;
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+
+import java.util.Arrays;
+
+/**
+ * This class runs the Viterbi algorithm on very long lines without keeping
+ * the whole N x T trellis. The forward pass only keeps the current column and
+ * a checkpoint column every K = sqrt(N) words. The back trace then goes
+ * through the line one segment of K words at a time, from the last segment to
+ * the first, recomputing the trellis of each segment from its checkpoint.
+ * Memory is O(sqrt(N) x T) at the cost of computing each column twice.
+ *
+ * Emissions are computed as the columns are computed instead of being
+ * prepared for the whole line.
+ *
+ * Produces the same tags as ViterbiDecoder with the default DecoderSettings.
+ *
+ * @author Shao Fei
+ *
+ */
+public class CheckpointViterbiDecoder {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	private TrainedStatistics trainedStatistics;
+	private int numTags;
+	private int[] stateIds;
+	private int startTagId;
+	private int endTagId;
+	private int defaultTagId;
+	private int quoteTagId;
+
+	// log(P(w|t)) of the word of the column being computed
+	private double[] logEmissions;
+	// log(P(w|t)) of the second word when the previous tag is ``
+	private double[] logEmissionsAfterQuote;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 */
+	public CheckpointViterbiDecoder(TrainedStatistics trainedStatistics) {
+		this.trainedStatistics = trainedStatistics;
+		numTags = ALL_POS_TAGS.size();
+		stateIds = ALL_POS_TAGS.getWordTagIds();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		defaultTagId = ALL_POS_TAGS.getId("NN");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+		logEmissions = new double[numTags];
+		logEmissionsAfterQuote = new double[numTags];
+	}
+
+	/**
+	 * Find the best sequence of tag ids for the words in a line.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @return The id of the best tag for each word in the line
+	 */
+	public int[] decode(String[] tokens) throws IllegalStateException {
+		int numTokens = tokens.length;
+		int segmentLength = Math.max(1, (int) Math.ceil(Math.sqrt(numTokens)));
+		SparseTransitions transitions = trainedStatistics.getSparseTransitions(Constants.MIN_VALUE);
+
+		// Forward pass, keeping the columns of words 0, K, 2K, ...
+		int numCheckpoints = (numTokens - 1) / segmentLength + 1;
+		double[] checkpoints = new double[numCheckpoints * numTags];
+		double[] prevColumn = new double[numTags];
+		double[] column = new double[numTags];
+		byte[] columnBackPointers = new byte[numTags];
+		Arrays.fill(prevColumn, Constants.MIN_VALUE);
+		Arrays.fill(column, Constants.MIN_VALUE);
+
+		computeFirstColumn(tokens[0], transitions, prevColumn);
+		System.arraycopy(prevColumn, 0, checkpoints, 0, numTags);
+		for (int t = 1; t < numTokens; t++) {
+			computeColumn(tokens, t, transitions, prevColumn, 0, column, columnBackPointers, 0);
+			double[] swap = prevColumn;
+			prevColumn = column;
+			column = swap;
+			if (t % segmentLength == 0)
+				System.arraycopy(prevColumn, 0, checkpoints, (t / segmentLength) * numTags, numTags);
+		}
+
+		// Termination step
+		double[][] logTransition = transitions.getLogTransitionTable();
+		double bestLastStateStat = Constants.MIN_VALUE;
+		int bestLastTag = defaultTagId;
+		for (int prevTag : transitions.getPredecessorTagIds(endTagId)) {
+			double candidateStateStat = prevColumn[prevTag] + logTransition[prevTag][endTagId];
+			if (candidateStateStat > bestLastStateStat) {
+				bestLastStateStat = candidateStateStat;
+				bestLastTag = prevTag;
+			}
+		}
+
+		// Back trace one segment at a time. Segment c covers the words
+		// c * K + 1 to (c + 1) * K, and is recomputed from the checkpoint of
+		// word c * K
+		int[] path = new int[numTokens];
+		path[numTokens - 1] = bestLastTag;
+		double[] segmentScores = new double[(segmentLength + 1) * numTags];
+		byte[] segmentBackPointers = new byte[(segmentLength + 1) * numTags];
+		for (int c = (numTokens - 2) / segmentLength; c >= 0 && numTokens > 1; c--) {
+			int segmentStart = c * segmentLength;
+			int segmentEnd = Math.min(segmentStart + segmentLength, numTokens - 1);
+			System.arraycopy(checkpoints, c * numTags, segmentScores, 0, numTags);
+			for (int t = segmentStart + 1; t <= segmentEnd; t++) {
+				int row = (t - segmentStart) * numTags;
+				computeColumn(tokens, t, transitions, segmentScores, row - numTags, segmentScores, segmentBackPointers,
+						row);
+			}
+			for (int t = segmentEnd; t > segmentStart; t--)
+				path[t - 1] = segmentBackPointers[(t - segmentStart) * numTags + path[t]];
+		}
+		return path;
+	}
+
+	/**
+	 * Initialisation step for the first word in the line.
+	 */
+	private void computeFirstColumn(String token, SparseTransitions transitions, double[] column) {
+		trainedStatistics.fillLogEmissionColumn(PreparedLine.getWordForEmission(token, 0), logEmissions, 0);
+		double[] logStartTransition = transitions.getLogTransitionTable()[startTagId];
+		for (int tag : stateIds)
+			column[tag] = logStartTransition[tag] + logEmissions[tag];
+	}
+
+	/**
+	 * Recursion step for word t. Previous tags are visited in increasing order
+	 * of id, so ties are broken as in ViterbiDecoder.
+	 */
+	private void computeColumn(String[] tokens, int t, SparseTransitions transitions, double[] prevScores,
+			int prevRow, double[] scores, byte[] backPointers, int row) {
+		double[][] logTransition = transitions.getLogTransitionTable();
+		trainedStatistics.fillLogEmissionColumn(PreparedLine.getWordForEmission(tokens[t], t), logEmissions, 0);
+		// The second word has a different emission when the previous tag is
+		// ``
+		double[] emissionsAfterQuote = logEmissions;
+		String wordAfterQuote = t == 1 ? PreparedLine.getWordAfterQuote(tokens[t]) : null;
+		if (wordAfterQuote != null) {
+			trainedStatistics.fillLogEmissionColumn(wordAfterQuote, logEmissionsAfterQuote, 0);
+			emissionsAfterQuote = logEmissionsAfterQuote;
+		}
+
+		for (int tag : stateIds) {
+			double logEmission = logEmissions[tag];
+			double logEmissionAfterQuote = emissionsAfterQuote[tag];
+			double bestStateStat = Constants.MIN_VALUE;
+			int bestPrevState = defaultTagId;
+			if (logEmission != Constants.MIN_VALUE || logEmissionAfterQuote != Constants.MIN_VALUE) {
+				for (int prevTag : transitions.getPredecessorTagIds(tag)) {
+					double candidateStateStat = prevScores[prevRow + prevTag] + logTransition[prevTag][tag]
+							+ (prevTag == quoteTagId ? logEmissionAfterQuote : logEmission);
+					if (candidateStateStat > bestStateStat) {
+						bestStateStat = candidateStateStat;
+						bestPrevState = prevTag;
+					}
+				}
+			}
+			scores[row + tag] = bestStateStat;
+			backPointers[row + tag] = (byte) bestPrevState;
+		}
+	}
+
+}
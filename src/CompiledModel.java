@@ -0,0 +1,181 @@
+/**
+ * This class is an immutable snapshot of a trained Model, made by
+ * Model.compile(), with everything the decoders read in dense tables:
+ *
+ * 1. log(P(w|t)) of every word in the vocabulary for every tag, one row of
+ * numTags cells per vocabulary id.
+ *
+ * 2. The features of the unknown word model, in an UnknownWordModel.
+ *
+ * 3. log(P(ti|ti-1)), its predecessor lists, and log(P(ti|ti-2,ti-1)) for
+ * second-order models.
+ *
+ * 4. C(w), the tags seen with each word with their counts, and the most
+ * frequent tag of each word.
+ *
+ * All the tables are computed in the constructor and never change, and the
+ * fields are final, so any number of decoder threads can share one
+ * CompiledModel without locks. A snapshot keeps the parameters the model had
+ * when it was compiled, and must be compiled again after they change.
+ *
+ * @author Shao Fei
+ *
+ */
+public final class CompiledModel implements TrainedStatistics {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	private final int numTags;
+	private final boolean isSecondOrder;
+
+	private final VocabularyIndex vocabularyIndex;
+	// C(w), the ids of the tags t with C(w,t) > 0 in increasing order, C(w,t)
+	// for each of those tags and the tag with the highest C(w,t), for each
+	// word id
+	private final int[] wordCounts;
+	private final int[][] observedTagIds;
+	private final int[][] observedTagCounts;
+	private final int[] mostFrequentTagIds;
+	// log(P(w|t)) for word id w and tag id t, at index w * numTags + t
+	private final double[] logEmissions;
+
+	private final UnknownWordModel unknownWordModel;
+
+	private final double[][] logTransitionTable;
+	private final SparseTransitions sparseTransitions;
+	// null if the model is not second-order
+	private final double[][] logTrigramTable;
+
+	/**
+	 * Called by Model.compile(). The arrays are kept as they are, so they must
+	 * not be shared with anything that modifies them. The VocabularyIndex
+	 * never changes, so it is shared with the model.
+	 */
+	CompiledModel(boolean isSecondOrder, VocabularyIndex vocabularyIndex, int[] wordCounts,
+			int[][] observedTagIds, int[][] observedTagCounts, int[] mostFrequentTagIds, double[] logEmissions,
+			UnknownWordModel unknownWordModel, double[][] logTransitionTable, double[][] logTrigramTable) {
+		numTags = ALL_POS_TAGS.size();
+		this.isSecondOrder = isSecondOrder;
+		this.vocabularyIndex = vocabularyIndex;
+		this.wordCounts = wordCounts;
+		this.observedTagIds = observedTagIds;
+		this.observedTagCounts = observedTagCounts;
+		this.mostFrequentTagIds = mostFrequentTagIds;
+		this.logEmissions = logEmissions;
+		this.unknownWordModel = unknownWordModel;
+		this.logTransitionTable = logTransitionTable;
+		this.logTrigramTable = logTrigramTable;
+		sparseTransitions = new SparseTransitions(logTransitionTable, Constants.MIN_VALUE);
+		// Computed now so that nothing is computed on first use
+		sparseTransitions.getTransitionTableByTag();
+	}
+
+	@Override
+	public boolean isTrained() {
+		return true;
+	}
+
+	@Override
+	public boolean isSecondOrder() {
+		return isSecondOrder;
+	}
+
+	public int getVocabularySize() {
+		return wordCounts.length;
+	}
+
+	// The tables as they are, for ModelFileWriter
+
+	VocabularyIndex getVocabularyIndex() {
+		return vocabularyIndex;
+	}
+
+	double[] getLogEmissions() {
+		return logEmissions;
+	}
+
+	int[] getObservedTagIds(int vocabularyId) {
+		return observedTagIds[vocabularyId];
+	}
+
+	int[] getObservedTagCounts(int vocabularyId) {
+		return observedTagCounts[vocabularyId];
+	}
+
+	UnknownWordModel getUnknownWordModel() {
+		return unknownWordModel;
+	}
+
+	@Override
+	public void fillLogEmissionColumn(String word, double[] column, int offset) {
+		int vocabularyId = getVocabularyId(word);
+		// Word is in vocabulary
+		if (vocabularyId != -1) {
+			System.arraycopy(logEmissions, vocabularyId * numTags, column, offset, numTags);
+			return;
+		}
+
+		// Word is not in vocabulary, estimate P(w|t) using unknown word model
+		unknownWordModel.fillLogEmissionColumn(word, column, offset);
+	}
+
+	@Override
+	public int getVocabularyId(CharSequence word) {
+		return vocabularyIndex.getId(word);
+	}
+
+	@Override
+	public int getWordCount(int vocabularyId) {
+		return wordCounts[vocabularyId];
+	}
+
+	@Override
+	public int getObservedTagIds(int vocabularyId, int[] tagIds) {
+		int[] observedTags = observedTagIds[vocabularyId];
+		System.arraycopy(observedTags, 0, tagIds, 0, observedTags.length);
+		return observedTags.length;
+	}
+
+	@Override
+	public int getMostFrequentTagId(int vocabularyId) {
+		return mostFrequentTagIds[vocabularyId];
+	}
+
+	@Override
+	public int getWordTagCount(String word, String tag) {
+		int vocabularyId = getVocabularyId(word);
+		if (vocabularyId == -1)
+			return 0;
+		int tagId = ALL_POS_TAGS.getId(tag);
+		int[] tagIds = observedTagIds[vocabularyId];
+		for (int i = 0; i < tagIds.length; i++)
+			if (tagIds[i] == tagId)
+				return observedTagCounts[vocabularyId][i];
+		return 0;
+	}
+
+	@Override
+	public double[][] getLogTransitionTable() {
+		return logTransitionTable;
+	}
+
+	/**
+	 * The predecessor lists for MIN_VALUE are compiled with the model. Those
+	 * for a higher minimum are built again on every call, so a decoder that
+	 * uses one should keep it.
+	 */
+	@Override
+	public SparseTransitions getSparseTransitions(double minLogTransitionProb) {
+		if (sparseTransitions.isBuiltFrom(logTransitionTable, minLogTransitionProb))
+			return sparseTransitions;
+		return new SparseTransitions(logTransitionTable, minLogTransitionProb);
+	}
+
+	@Override
+	public double[][] getLogTrigramTable() throws IllegalStateException {
+		if (logTrigramTable == null)
+			throw new IllegalStateException("Model has no trigram counts!");
+		return logTrigramTable;
+	}
+
+}
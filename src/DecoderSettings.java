@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Settings used by the decoders when tagging. With a first-order model, the
+ * default values give the exact Viterbi result. With a second-order model,
+ * TRIGRAM_BEAM_WIDTH and TRIGRAM_TAG_DICTIONARY_MIN_COUNT prune the trellis
+ * by default so that it decodes close to the speed of a first-order model.
+ * Setting both to 0 gives the exact second-order result.
+ *
+ * Tagger decodes with one decoder, picked in this order:
+ *
+ * 1. TrigramViterbiDecoder if the model is second-order
+ *
+ * 2. ViterbiDecoder with the known tags if PRETAGGED
+ *
+ * 3. OnlineViterbiDecoder if STREAMING
+ *
+ * 4. AStarDecoder if A_STAR
+ *
+ * 5. AnytimeDecoder if DEADLINE_MILLIS > 0
+ *
+ * 6. KBestDecoder if K_BEST > 1
+ *
+ * 7. BatchDecoder if BATCH_SIZE > 0
+ *
+ * 8. ViterbiDecoder line by line otherwise
+ *
+ * The settings that the picked decoder does not apply are given by
+ * getIgnoredSetting(), and run_tagger rejects them.
+ *
+ * @author Shao Fei
+ *
+ */
+public class DecoderSettings {
+
+	// Maximum number of states kept in each trellis column. 0 keeps all the
+	// states
+	public int BEAM_WIDTH = 0;
+	// States whose log statistic is more than this below the best state of
+	// the column are dropped. Infinity keeps all the states, and a negative
+	// value or NaN would drop them all
+	public double BEAM_THRESHOLD = Double.POSITIVE_INFINITY;
+
+	// Known words seen at least this many times in the training set only get
+	// the tags they were seen with. 0 disables the tag dictionary
+	public int TAG_DICTIONARY_MIN_COUNT = 0;
+
+	// Transitions with a lower log(P(ti|ti-1)) are never visited. MIN_VALUE
+	// only leaves out the transitions with P(ti|ti-1) = 0
+	public double MIN_LOG_TRANSITION_PROB = Constants.MIN_VALUE;
+
+	// Number of lines that Tagger reads and decodes together with
+	// BatchDecoder. 0 decodes line by line
+	public int BATCH_SIZE = 0;
+
+	// Lines with at least this many words are decoded exactly with
+	// CheckpointViterbiDecoder, which does not keep the whole trellis. The
+	// beam and the tag dictionary are not applied to those lines
+	public int LONG_LINE_MIN_TOKENS = 10000;
+
+	// Lines with at least this many words are decoded exactly on several
+	// threads with ParallelViterbiDecoder, before LONG_LINE_MIN_TOKENS is
+	// considered. 0 decodes every line on one thread
+	public int PARALLEL_MIN_TOKENS = 0;
+
+	// Tagger decodes each line as a stream of words with
+	// OnlineViterbiDecoder, which gives out the tags before the end of the
+	// line
+	public boolean STREAMING = false;
+	// Maximum number of words whose tag is not known yet when streaming. 0
+	// waits until the paths agree
+	public int MAX_LOOKAHEAD = 0;
+
+	// Number of best sequences of tags that Tagger writes for each line with
+	// KBestDecoder. 1 writes only the best one
+	public int K_BEST = 1;
+
+	// Tagger reads tokens of the form word/tag, where tag is a valid POS tag,
+	// as words whose tag is already known. The lines are then decoded line
+	// by line with ViterbiDecoder
+	public boolean PRETAGGED = false;
+
+	// Punctuation, numerals and the tokens listed in DeterministicTags are
+	// given their tag from DeterministicTags instead of being decoded
+	public boolean DETERMINISTIC_TAGS = false;
+
+	// Maximum number of trellis columns kept in the PrefixCache of Tagger
+	// when decoding line by line. 0 disables the cache
+	public int PREFIX_CACHE_SIZE = 0;
+
+	// Time Tagger gives AnytimeDecoder to tag each line, in milliseconds. 0
+	// tags every line exactly with no deadline
+	public long DEADLINE_MILLIS = 0;
+
+	// Tagger decodes line by line with AStarDecoder instead of
+	// ViterbiDecoder. The result is the same, and no other setting applies
+	public boolean A_STAR = false;
+
+	// Maximum number of pairs of tags kept in each trellis column by
+	// TrigramViterbiDecoder, which Tagger uses for second-order models. 0
+	// keeps all the pairs. On by default, unlike BEAM_WIDTH
+	public int TRIGRAM_BEAM_WIDTH = 16;
+	// Known words seen at least this many times only get the tags they were
+	// seen with in TrigramViterbiDecoder. 0 disables the tag dictionary. On
+	// by default, unlike TAG_DICTIONARY_MIN_COUNT
+	public int TRIGRAM_TAG_DICTIONARY_MIN_COUNT = 1;
+
+	public DecoderSettings() {}
+
+	/**
+	 * @return true if the beam may drop states from the trellis
+	 */
+	public boolean isBeamEnabled() {
+		return BEAM_WIDTH > 0 || BEAM_THRESHOLD != Double.POSITIVE_INFINITY;
+	}
+
+	public boolean isTagDictionaryEnabled() {
+		return TAG_DICTIONARY_MIN_COUNT > 0;
+	}
+
+	/**
+	 * @param isSecondOrder
+	 *            Whether the model is second-order
+	 * @return The name of a setting that differs from its default but is not
+	 *         applied by the decoder that Tagger picks, or null if they all
+	 *         are
+	 */
+	public String getIgnoredSetting(boolean isSecondOrder) {
+		DecoderSettings defaults = new DecoderSettings();
+		List<String> changed = new ArrayList<String>();
+		if (BEAM_WIDTH != defaults.BEAM_WIDTH)
+			changed.add("BEAM_WIDTH");
+		if (BEAM_THRESHOLD != defaults.BEAM_THRESHOLD)
+			changed.add("BEAM_THRESHOLD");
+		if (TAG_DICTIONARY_MIN_COUNT != defaults.TAG_DICTIONARY_MIN_COUNT)
+			changed.add("TAG_DICTIONARY_MIN_COUNT");
+		if (MIN_LOG_TRANSITION_PROB != defaults.MIN_LOG_TRANSITION_PROB)
+			changed.add("MIN_LOG_TRANSITION_PROB");
+		if (BATCH_SIZE != defaults.BATCH_SIZE)
+			changed.add("BATCH_SIZE");
+		if (LONG_LINE_MIN_TOKENS != defaults.LONG_LINE_MIN_TOKENS)
+			changed.add("LONG_LINE_MIN_TOKENS");
+		if (PARALLEL_MIN_TOKENS != defaults.PARALLEL_MIN_TOKENS)
+			changed.add("PARALLEL_MIN_TOKENS");
+		if (STREAMING != defaults.STREAMING)
+			changed.add("STREAMING");
+		if (MAX_LOOKAHEAD != defaults.MAX_LOOKAHEAD)
+			changed.add("MAX_LOOKAHEAD");
+		if (K_BEST != defaults.K_BEST)
+			changed.add("K_BEST");
+		if (PRETAGGED != defaults.PRETAGGED)
+			changed.add("PRETAGGED");
+		if (DETERMINISTIC_TAGS != defaults.DETERMINISTIC_TAGS)
+			changed.add("DETERMINISTIC_TAGS");
+		if (PREFIX_CACHE_SIZE != defaults.PREFIX_CACHE_SIZE)
+			changed.add("PREFIX_CACHE_SIZE");
+		if (DEADLINE_MILLIS != defaults.DEADLINE_MILLIS)
+			changed.add("DEADLINE_MILLIS");
+		if (A_STAR != defaults.A_STAR)
+			changed.add("A_STAR");
+		if (TRIGRAM_BEAM_WIDTH != defaults.TRIGRAM_BEAM_WIDTH)
+			changed.add("TRIGRAM_BEAM_WIDTH");
+		if (TRIGRAM_TAG_DICTIONARY_MIN_COUNT != defaults.TRIGRAM_TAG_DICTIONARY_MIN_COUNT)
+			changed.add("TRIGRAM_TAG_DICTIONARY_MIN_COUNT");
+
+		// The settings of ViterbiDecoder that prune the trellis
+		List<String> pruning = Arrays.asList("BEAM_WIDTH", "BEAM_THRESHOLD", "TAG_DICTIONARY_MIN_COUNT",
+				"MIN_LOG_TRANSITION_PROB", "DETERMINISTIC_TAGS");
+		if (isSecondOrder)
+			changed.removeAll(Arrays.asList("TRIGRAM_BEAM_WIDTH", "TRIGRAM_TAG_DICTIONARY_MIN_COUNT", "BEAM_THRESHOLD"));
+		else if (PRETAGGED) {
+			changed.remove("PRETAGGED");
+			changed.removeAll(pruning);
+		} else if (STREAMING)
+			changed.removeAll(Arrays.asList("STREAMING", "MAX_LOOKAHEAD"));
+		else if (A_STAR)
+			changed.remove("A_STAR");
+		else if (DEADLINE_MILLIS > 0)
+			changed.remove("DEADLINE_MILLIS");
+		else if (K_BEST > 1)
+			changed.remove("K_BEST");
+		else {
+			changed.remove("BATCH_SIZE");
+			changed.removeAll(pruning);
+			changed.removeAll(Arrays.asList("LONG_LINE_MIN_TOKENS", "PARALLEL_MIN_TOKENS"));
+			// ViterbiDecoder only uses the prefix cache when decoding line by
+			// line exactly
+			if (BATCH_SIZE == 0 && !isApproximate())
+				changed.remove("PREFIX_CACHE_SIZE");
+		}
+		return changed.isEmpty() ? null : changed.get(0);
+	}
+
+	/**
+	 * @return true if the result of ViterbiDecoder may differ from the exact
+	 *         Viterbi result of a first-order model
+	 */
+	public boolean isApproximate() {
+		return isBeamEnabled() || isTagDictionaryEnabled() || MIN_LOG_TRANSITION_PROB > Constants.MIN_VALUE
+				|| DETERMINISTIC_TAGS;
+	}
+
+	/**
+	 * @param isSecondOrder
+	 *            Whether the model is second-order
+	 * @return true if the result may differ from the exact Viterbi result of
+	 *         the model. TrigramViterbiDecoder, used for second-order models,
+	 *         is pruned by its own settings and by BEAM_THRESHOLD
+	 */
+	public boolean isApproximate(boolean isSecondOrder) {
+		if (!isSecondOrder)
+			return isApproximate();
+		return TRIGRAM_BEAM_WIDTH > 0 || TRIGRAM_TAG_DICTIONARY_MIN_COUNT > 0
+				|| BEAM_THRESHOLD != Double.POSITIVE_INFINITY;
+	}
+
+}
@@ -0,0 +1,115 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * This class stores the tokens that are given a single tag without decoding:
+ * the tokens that are written the same as a punctuation tag of
+ * penn_tree_tags.data (e.g. "," and "-LRB-"), the tokens of TOKEN_TAGS and
+ * the numerals, which get CD.
+ *
+ * The rules live in this class and are not read from any file, so a rule is
+ * added or changed by editing TOKEN_TAGS.
+ *
+ * A token seen in the training set is only given its rule tag if at least
+ * MIN_AGREEMENT of its occurrences had that tag, so the training counts win
+ * when they disagree with the rules. Unseen tokens always get their rule tag,
+ * which also saves running the unknown word model on unseen numerals.
+ *
+ * @author Shao Fei
+ *
+ */
+public class DeterministicTags {
+
+	// Tokens that always get the same tag, and that tag
+	private static final String[][] TOKEN_TAGS = {
+			{ ";", ":" },
+			{ "--", ":" },
+			{ "...", ":" },
+			{ "-LCB-", "-LRB-" },
+			{ "-RCB-", "-RRB-" },
+			{ "%", "NN" }
+	};
+	private static final Pattern NUMERAL = Pattern.compile("[0-9]+([.,:/][0-9]+)*");
+	private static final String NUMERAL_TAG = "CD";
+	public static final double MIN_AGREEMENT = 0.99;
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	private TrainedStatistics trainedStatistics;
+	// Id of the tag of each token in the rules that agree with the training
+	// counts
+	private Map<String, Integer> tagIds;
+	private boolean isNumeralTagUsed;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained, whose counts are
+	 *            checked against the rules
+	 */
+	public DeterministicTags(TrainedStatistics trainedStatistics) {
+		this.trainedStatistics = trainedStatistics;
+		tagIds = new HashMap<String, Integer>();
+		for (int tagId : ALL_POS_TAGS.getWordTagIds()) {
+			String tag = ALL_POS_TAGS.getTag(tagId);
+			if (!Character.isLetter(tag.charAt(0)))
+				addIfAgreed(tag, tag);
+		}
+		for (String[] tokenTag : TOKEN_TAGS)
+			addIfAgreed(tokenTag[0], tokenTag[1]);
+		isNumeralTagUsed = ALL_POS_TAGS.isWordTag(NUMERAL_TAG);
+	}
+
+	private void addIfAgreed(String token, String tag) {
+		if (isAgreed(token, tag))
+			tagIds.put(token, ALL_POS_TAGS.getId(tag));
+	}
+
+	/**
+	 * @return true if the token is unseen or seen with the tag at least
+	 *         MIN_AGREEMENT of the time
+	 */
+	private boolean isAgreed(String token, String tag) {
+		int vocabularyId = trainedStatistics.getVocabularyId(token);
+		if (vocabularyId == -1)
+			return true;
+		return trainedStatistics.getWordTagCount(token, tag) >= MIN_AGREEMENT
+				* trainedStatistics.getWordCount(vocabularyId);
+	}
+
+	/**
+	 * @param token
+	 *            A token of a line
+	 * @return The id of the tag given to the token, -1 if the token is left to
+	 *         the decoder
+	 */
+	public int getTagId(String token) {
+		Integer tagId = tagIds.get(token);
+		if (tagId != null)
+			return tagId;
+		if (isNumeralTagUsed && NUMERAL.matcher(token).matches() && isAgreed(token, NUMERAL_TAG))
+			return ALL_POS_TAGS.getId(NUMERAL_TAG);
+		return -1;
+	}
+
+	/**
+	 * Fill in the tag of each token of a line given by the rules.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @param fixedTagIds
+	 *            Receives the id of the tag of each token, -1 for the tokens
+	 *            left to the decoder
+	 * @return The number of tokens given a tag
+	 */
+	public int fillTagIds(String[] tokens, int[] fixedTagIds) {
+		int numFixed = 0;
+		for (int i = 0; i < tokens.length; i++) {
+			fixedTagIds[i] = getTagId(tokens[i]);
+			if (fixedTagIds[i] != -1)
+				numFixed++;
+		}
+		return numFixed;
+	}
+
+}
@@ -0,0 +1,270 @@
+
+/**
+ * This class runs the forward-backward algorithm on a line to get the
+ * probability of each tag for each word given the whole line, P(ti|w1...wn),
+ * and the probability of the line, P(w1...wn).
+ *
+ * The forward and backward statistics are kept as probabilities rather than
+ * log probabilities, so that the sums over the previous tags are plain
+ * multiply-adds, and each column of forward statistics is scaled to sum to 1
+ * so that they do not underflow on long lines. The backward statistics are
+ * scaled by the same factors. The probability of the line is the product of
+ * the scaling factors, which is accumulated in log space.
+ *
+ * The emissions come from PreparedLine and the transitions from
+ * SparseTransitions, so only the transitions with P(ti|ti-1) > 0 are visited,
+ * as in ViterbiDecoder. The statistics are kept in flat arrays with the same
+ * layout as the trellis of ViterbiWorkspace, one row of numTags cells per
+ * word.
+ *
+ * @author Shao Fei
+ *
+ */
+public class ForwardBackward {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	private TrainedStatistics trainedStatistics;
+	private PreparedLine line;
+	private int numTags;
+	private int[] stateIds;
+	private int startTagId;
+	private int endTagId;
+	private int quoteTagId;
+
+	private int numTokens;
+	// P(w|t) for word t and tag s, at index t * numTags + s
+	private double[] emissions;
+	// P(w|t) for the second word when the previous tag is ``
+	private double[] emissionsAfterQuote;
+	// Scaled forward and backward statistics for word t and tag s, at index
+	// t * numTags + s. Their product is P(ti=s|w1...wn)
+	private double[] forward;
+	private double[] backward;
+	// Sum of the forward statistics of each word before scaling
+	private double[] scales;
+	private double logLikelihood;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 */
+	public ForwardBackward(TrainedStatistics trainedStatistics) {
+		this.trainedStatistics = trainedStatistics;
+		line = new PreparedLine();
+		numTags = ALL_POS_TAGS.size();
+		stateIds = ALL_POS_TAGS.getWordTagIds();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+		emissions = new double[0];
+		emissionsAfterQuote = new double[numTags];
+		forward = new double[0];
+		backward = new double[0];
+		scales = new double[0];
+		numTokens = 0;
+		logLikelihood = Constants.MIN_VALUE;
+	}
+
+	public int getNumTokens() {
+		return numTokens;
+	}
+
+	/**
+	 * @return log(P(w1...wn)) of the last line, MIN_VALUE if it cannot be
+	 *         generated by the model
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * @param index
+	 *            Index of a word in the last line
+	 * @param tagId
+	 *            Id of a tag
+	 * @return P(ti|w1...wn), 0 for all the tags if the line cannot be
+	 *         generated by the model
+	 */
+	public double getPosterior(int index, int tagId) {
+		return forward[index * numTags + tagId] * backward[index * numTags + tagId];
+	}
+
+	public double getPosterior(int index, String tag) {
+		return getPosterior(index, ALL_POS_TAGS.getId(tag));
+	}
+
+	/**
+	 * @param index
+	 *            Index of a word in the last line
+	 * @return P(ti|w1...wn) at the id of each tag
+	 */
+	public double[] getPosteriors(int index) {
+		double[] posteriors = new double[numTags];
+		for (int tag : stateIds)
+			posteriors[tag] = getPosterior(index, tag);
+		return posteriors;
+	}
+
+	/**
+	 * Compute the posteriors and the likelihood of a line.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 */
+	public void run(String[] tokens) throws IllegalStateException {
+		line.prepare(trainedStatistics, tokens);
+		run(line);
+	}
+
+	/**
+	 * Compute the posteriors and the likelihood of a line whose tokens have
+	 * already been resolved against the model.
+	 *
+	 * @param preparedLine
+	 *            The prepared line
+	 */
+	public void run(PreparedLine preparedLine) throws IllegalStateException {
+		numTokens = preparedLine.getNumTokens();
+		ensureCapacity(numTokens);
+		SparseTransitions transitions = trainedStatistics.getSparseTransitions(Constants.MIN_VALUE);
+		double[][] transitionByTag = transitions.getTransitionTableByTag();
+
+		// Probabilities of the emissions
+		double[] logEmissions = preparedLine.getLogEmissions();
+		for (int i = 0; i < numTokens * numTags; i++)
+			emissions[i] = Math.exp(logEmissions[i]);
+		double[] logEmissionsAfterQuote = preparedLine.getLogEmissionsAfterQuote();
+		for (int tag = 0; tag < numTags; tag++)
+			emissionsAfterQuote[tag] = numTokens < 2 ? 0.0
+					: logEmissionsAfterQuote == null ? emissions[numTags + tag] : Math.exp(logEmissionsAfterQuote[tag]);
+
+		runForward(transitions, transitionByTag);
+		if (logLikelihood == Constants.MIN_VALUE) {
+			for (int i = 0; i < numTokens * numTags; i++)
+				backward[i] = 0.0;
+			return;
+		}
+		runBackward(transitions, transitionByTag);
+	}
+
+	/**
+	 * Fill the scaled forward statistics and the likelihood.
+	 */
+	private void runForward(SparseTransitions transitions, double[][] transitionByTag) {
+		logLikelihood = 0.0;
+		for (int i = 0; i < numTokens * numTags; i++)
+			forward[i] = 0.0;
+
+		for (int tag : stateIds)
+			forward[tag] = transitionByTag[tag][startTagId] * emissions[tag];
+		if (!scaleForward(0))
+			return;
+
+		for (int t = 1; t < numTokens; t++) {
+			int prevRow = (t - 1) * numTags;
+			int row = t * numTags;
+			for (int tag : stateIds) {
+				double emission = emissions[row + tag];
+				double[] transition = transitionByTag[tag];
+				double sum = 0.0;
+				if (t == 1) {
+					// The second word has a different emission when the
+					// previous tag is ``
+					for (int prevTag : transitions.getPredecessorTagIds(tag))
+						sum += forward[prevRow + prevTag] * transition[prevTag]
+								* (prevTag == quoteTagId ? emissionsAfterQuote[tag] : emission);
+				} else if (emission != 0.0) {
+					for (int prevTag : transitions.getPredecessorTagIds(tag))
+						sum += forward[prevRow + prevTag] * transition[prevTag];
+					sum *= emission;
+				}
+				forward[row + tag] = sum;
+			}
+			if (!scaleForward(t))
+				return;
+		}
+
+		// Transitions to </s>
+		int lastRow = (numTokens - 1) * numTags;
+		double[] endTransition = transitionByTag[endTagId];
+		double endScale = 0.0;
+		for (int prevTag : stateIds)
+			endScale += forward[lastRow + prevTag] * endTransition[prevTag];
+		if (endScale == 0.0) {
+			logLikelihood = Constants.MIN_VALUE;
+			return;
+		}
+		scales[numTokens] = endScale;
+		logLikelihood += Math.log(endScale);
+	}
+
+	/**
+	 * Scale the forward statistics of word t to sum to 1.
+	 *
+	 * @return false if they are all 0, in which case the likelihood is set to
+	 *         MIN_VALUE
+	 */
+	private boolean scaleForward(int t) {
+		int row = t * numTags;
+		double scale = 0.0;
+		for (int tag : stateIds)
+			scale += forward[row + tag];
+		if (scale == 0.0) {
+			logLikelihood = Constants.MIN_VALUE;
+			return false;
+		}
+		for (int tag : stateIds)
+			forward[row + tag] /= scale;
+		scales[t] = scale;
+		logLikelihood += Math.log(scale);
+		return true;
+	}
+
+	/**
+	 * Fill the backward statistics, scaled by the scales of the forward
+	 * statistics of the next word.
+	 */
+	private void runBackward(SparseTransitions transitions, double[][] transitionByTag) {
+		for (int i = 0; i < numTokens * numTags; i++)
+			backward[i] = 0.0;
+
+		int lastRow = (numTokens - 1) * numTags;
+		double[] endTransition = transitionByTag[endTagId];
+		for (int tag : stateIds)
+			backward[lastRow + tag] = endTransition[tag] / scales[numTokens];
+
+		// Each tag at word t + 1 adds to the backward statistics of the
+		// previous tags that can transit to it
+		for (int t = numTokens - 2; t >= 0; t--) {
+			int row = t * numTags;
+			int nextRow = (t + 1) * numTags;
+			double scale = scales[t + 1];
+			for (int tag : stateIds) {
+				double[] transition = transitionByTag[tag];
+				double nextBackward = backward[nextRow + tag] / scale;
+				if (t == 0) {
+					for (int prevTag : transitions.getPredecessorTagIds(tag))
+						backward[row + prevTag] += transition[prevTag] * nextBackward
+								* (prevTag == quoteTagId ? emissionsAfterQuote[tag] : emissions[nextRow + tag]);
+				} else {
+					double weight = nextBackward * emissions[nextRow + tag];
+					if (weight == 0.0)
+						continue;
+					for (int prevTag : transitions.getPredecessorTagIds(tag))
+						backward[row + prevTag] += transition[prevTag] * weight;
+				}
+			}
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (scales.length >= capacity + 1)
+			return;
+		emissions = new double[capacity * numTags];
+		forward = new double[capacity * numTags];
+		backward = new double[capacity * numTags];
+		scales = new double[capacity + 1];
+	}
+
+}
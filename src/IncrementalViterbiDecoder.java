@@ -0,0 +1,335 @@
+
+/**
+ * This class keeps the trellis of a line between calls so that the line can
+ * be tagged again after some of its words are replaced, inserted or deleted,
+ * without decoding it from the start.
+ *
+ * The columns before the first edited word do not change and are kept. The
+ * columns from there on are computed again until one of them matches the old
+ * column at the same word up to a constant, which means that all the later
+ * columns would only be shifted by that constant and can be kept as well. The
+ * back trace stops as soon as the new path joins the old path before the
+ * first edited word.
+ *
+ * Columns are taken to match when their differences are all within
+ * CONVERGENCE_TOLERANCE of each other, so the tags only differ from those of
+ * ViterbiDecoder when two paths are that close.
+ *
+ * @author Shao Fei
+ *
+ */
+public class IncrementalViterbiDecoder {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+	private static final double CONVERGENCE_TOLERANCE = 1e-8;
+
+	private TrainedStatistics trainedStatistics;
+	private int numTags;
+	private int[] stateIds;
+	private int startTagId;
+	private int endTagId;
+	private int defaultTagId;
+	private int quoteTagId;
+
+	private int numTokens;
+	private String[] tokens;
+	// log(viterbi(s,t)) for word t and tag s, at index t * numTags + s. The
+	// columns after a match may all be shifted by the same constant
+	private double[] scores;
+	private byte[] backPointers;
+	// Best tag id of each word from the last call to tag()
+	private int[] path;
+	// First and last words edited since the last call to tag(). Columns from
+	// firstEdited to lastEdited are always computed again
+	private int firstEdited;
+	private int lastEdited;
+	// Number of columns computed by the last call to tag()
+	private int numColumnsComputed;
+
+	// The column being computed
+	private double[] column;
+	private byte[] columnBackPointers;
+	private double[] logEmissions;
+	private double[] logEmissionsAfterQuote;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 */
+	public IncrementalViterbiDecoder(TrainedStatistics trainedStatistics) {
+		this.trainedStatistics = trainedStatistics;
+		numTags = ALL_POS_TAGS.size();
+		stateIds = ALL_POS_TAGS.getWordTagIds();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		defaultTagId = ALL_POS_TAGS.getId("NN");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+
+		numTokens = 0;
+		tokens = new String[0];
+		scores = new double[0];
+		backPointers = new byte[0];
+		path = new int[0];
+		firstEdited = Integer.MAX_VALUE;
+		lastEdited = -1;
+		numColumnsComputed = 0;
+		column = new double[numTags];
+		columnBackPointers = new byte[numTags];
+		logEmissions = new double[numTags];
+		logEmissionsAfterQuote = new double[numTags];
+	}
+
+	public int getNumTokens() {
+		return numTokens;
+	}
+
+	public String getToken(int index) {
+		checkIndex(index, numTokens);
+		return tokens[index];
+	}
+
+	/**
+	 * @return The number of trellis columns computed by the last call to tag()
+	 */
+	public int getNumColumnsComputed() {
+		return numColumnsComputed;
+	}
+
+	/**
+	 * Start a new line. The whole line is decoded by the next call to tag().
+	 *
+	 * @param lineTokens
+	 *            The words in the line
+	 */
+	public void setTokens(String[] lineTokens) {
+		numTokens = 0;
+		ensureCapacity(lineTokens.length);
+		System.arraycopy(lineTokens, 0, tokens, 0, lineTokens.length);
+		numTokens = lineTokens.length;
+		firstEdited = 0;
+		lastEdited = numTokens - 1;
+	}
+
+	/**
+	 * Replace the word at index.
+	 */
+	public void replaceToken(int index, String token) {
+		checkIndex(index, numTokens);
+		tokens[index] = token;
+		markEdited(index);
+	}
+
+	/**
+	 * Insert a word before the word at index, or at the end of the line if
+	 * index is the number of words.
+	 */
+	public void insertToken(int index, String token) {
+		checkIndex(index, numTokens + 1);
+		ensureCapacity(numTokens + 1);
+		shiftWords(index, index + 1);
+		numTokens++;
+		tokens[index] = token;
+		if (lastEdited >= index)
+			lastEdited++;
+		markEdited(index);
+	}
+
+	/**
+	 * Delete the word at index.
+	 */
+	public void deleteToken(int index) {
+		checkIndex(index, numTokens);
+		shiftWords(index + 1, index);
+		numTokens--;
+		if (lastEdited > index)
+			lastEdited--;
+		markEdited(index);
+	}
+
+	/**
+	 * Find the best sequence of tags for the words of the line after the
+	 * edits since the last call.
+	 *
+	 * @return The best tag for each word in the line
+	 */
+	public String[] tag() throws IllegalStateException {
+		int[] tagIds = decode();
+		String[] tags = new String[numTokens];
+		for (int i = 0; i < numTokens; i++)
+			tags[i] = ALL_POS_TAGS.getTag(tagIds[i]);
+		return tags;
+	}
+
+	/**
+	 * Find the best sequence of tag ids for the words of the line after the
+	 * edits since the last call.
+	 *
+	 * @return The id of the best tag for each word in the line. Must not be
+	 *         modified, and is only valid until the next edit.
+	 */
+	public int[] decode() throws IllegalStateException {
+		numColumnsComputed = 0;
+		if (numTokens == 0) {
+			firstEdited = Integer.MAX_VALUE;
+			lastEdited = -1;
+			return new int[0];
+		}
+		SparseTransitions transitions = trainedStatistics.getSparseTransitions(Constants.MIN_VALUE);
+		double[][] logTransition = transitions.getLogTransitionTable();
+
+		// Compute the columns again from the first edited word until one
+		// matches the old column
+		for (int t = firstEdited; t < numTokens; t++) {
+			computeColumn(t, transitions);
+			numColumnsComputed++;
+			boolean isMatch = t > lastEdited && matchesColumn(t);
+			System.arraycopy(column, 0, scores, t * numTags, numTags);
+			System.arraycopy(columnBackPointers, 0, backPointers, t * numTags, numTags);
+			if (isMatch)
+				break;
+		}
+
+		// Termination step
+		int lastRow = (numTokens - 1) * numTags;
+		double bestLastStateStat = Constants.MIN_VALUE;
+		int bestLastTag = defaultTagId;
+		for (int prevTag : stateIds) {
+			double candidateStateStat = scores[lastRow + prevTag] + logTransition[prevTag][endTagId];
+			if (candidateStateStat > bestLastStateStat) {
+				bestLastStateStat = candidateStateStat;
+				bestLastTag = prevTag;
+			}
+		}
+
+		// Back trace until the path joins the old path before the first
+		// edited word
+		int unchangedEnd = Math.min(firstEdited, numTokens);
+		path[numTokens - 1] = bestLastTag;
+		for (int t = numTokens - 1; t > 0; t--) {
+			int prevTag = backPointers[t * numTags + path[t]];
+			if (t - 1 < unchangedEnd && path[t - 1] == prevTag)
+				break;
+			path[t - 1] = prevTag;
+		}
+
+		firstEdited = Integer.MAX_VALUE;
+		lastEdited = -1;
+		return path;
+	}
+
+	/**
+	 * Compute the column of word t into column and columnBackPointers.
+	 */
+	private void computeColumn(int t, SparseTransitions transitions) {
+		double[][] logTransition = transitions.getLogTransitionTable();
+		trainedStatistics.fillLogEmissionColumn(PreparedLine.getWordForEmission(tokens[t], t), logEmissions, 0);
+		for (int tag = 0; tag < numTags; tag++)
+			column[tag] = Constants.MIN_VALUE;
+
+		if (t == 0) {
+			for (int tag : stateIds) {
+				column[tag] = logTransition[startTagId][tag] + logEmissions[tag];
+				columnBackPointers[tag] = (byte) startTagId;
+			}
+			return;
+		}
+
+		// The second word has a different emission when the previous tag is
+		// ``
+		double[] emissionsAfterQuote = logEmissions;
+		String wordAfterQuote = t == 1 ? PreparedLine.getWordAfterQuote(tokens[t]) : null;
+		if (wordAfterQuote != null) {
+			trainedStatistics.fillLogEmissionColumn(wordAfterQuote, logEmissionsAfterQuote, 0);
+			emissionsAfterQuote = logEmissionsAfterQuote;
+		}
+
+		int prevRow = (t - 1) * numTags;
+		for (int tag : stateIds) {
+			double logEmission = logEmissions[tag];
+			double logEmissionAfterQuote = emissionsAfterQuote[tag];
+			double bestStateStat = Constants.MIN_VALUE;
+			int bestPrevState = defaultTagId;
+			if (logEmission != Constants.MIN_VALUE || logEmissionAfterQuote != Constants.MIN_VALUE) {
+				for (int prevTag : transitions.getPredecessorTagIds(tag)) {
+					double candidateStateStat = scores[prevRow + prevTag] + logTransition[prevTag][tag]
+							+ (prevTag == quoteTagId ? logEmissionAfterQuote : logEmission);
+					if (candidateStateStat > bestStateStat) {
+						bestStateStat = candidateStateStat;
+						bestPrevState = prevTag;
+					}
+				}
+			}
+			column[tag] = bestStateStat;
+			columnBackPointers[tag] = (byte) bestPrevState;
+		}
+	}
+
+	/**
+	 * @return true if the new column of word t has the same states at
+	 *         MIN_VALUE as the old column, and the other states differ from
+	 *         the old ones by the same constant
+	 */
+	private boolean matchesColumn(int t) {
+		int row = t * numTags;
+		boolean hasOffset = false;
+		double offset = 0;
+		for (int tag : stateIds) {
+			double oldStateStat = scores[row + tag];
+			double stateStat = column[tag];
+			boolean isLive = stateStat > Constants.MIN_VALUE;
+			if (isLive != oldStateStat > Constants.MIN_VALUE)
+				return false;
+			if (!isLive)
+				continue;
+			if (!hasOffset) {
+				offset = stateStat - oldStateStat;
+				hasOffset = true;
+			} else if (Math.abs(stateStat - oldStateStat - offset) > CONVERGENCE_TOLERANCE)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Move the words from index from onwards, with their trellis columns, so
+	 * that they start at index to.
+	 */
+	private void shiftWords(int from, int to) {
+		int numMoved = numTokens - from;
+		System.arraycopy(tokens, from, tokens, to, numMoved);
+		System.arraycopy(scores, from * numTags, scores, to * numTags, numMoved * numTags);
+		System.arraycopy(backPointers, from * numTags, backPointers, to * numTags, numMoved * numTags);
+	}
+
+	private void markEdited(int index) {
+		firstEdited = Math.min(firstEdited, index);
+		lastEdited = Math.max(lastEdited, index);
+		// The first two words have emissions that depend on their index
+		if (index <= 1)
+			lastEdited = Math.max(lastEdited, 2);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (tokens.length >= capacity)
+			return;
+		int newCapacity = Math.max(capacity, tokens.length * 2);
+		String[] newTokens = new String[newCapacity];
+		double[] newScores = new double[newCapacity * numTags];
+		byte[] newBackPointers = new byte[newCapacity * numTags];
+		int[] newPath = new int[newCapacity];
+		System.arraycopy(tokens, 0, newTokens, 0, numTokens);
+		System.arraycopy(scores, 0, newScores, 0, numTokens * numTags);
+		System.arraycopy(backPointers, 0, newBackPointers, 0, numTokens * numTags);
+		System.arraycopy(path, 0, newPath, 0, numTokens);
+		tokens = newTokens;
+		scores = newScores;
+		backPointers = newBackPointers;
+		path = newPath;
+	}
+
+	private static void checkIndex(int index, int size) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+
+}
@@ -0,0 +1,347 @@
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class finds the best sequences of tags for a line one at a time, from
+ * the best to the worst, with the recursive enumeration algorithm.
+ *
+ * The trellis is filled once as by ViterbiDecoder, which gives the best path
+ * to every state. The next best paths to a state are only computed when they
+ * are asked for: the k-th best path to state s of word t is either a best
+ * path through another previous state, or the path following the (k-1)-th
+ * best one through the same previous state, whose next best path is then
+ * computed the same way. Each new path only adds a few candidates along one
+ * path back to the start of the line, so the first few paths cost little
+ * more than the best one.
+ *
+ * Paths with a probability of 0 are never given out, except for the best one
+ * which is the same as that of ViterbiDecoder.
+ *
+ * @author Shao Fei
+ *
+ */
+public class KBestDecoder {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	/**
+	 * The best paths to a state found so far, from the best, and the
+	 * candidates for the next one.
+	 */
+	private static class StatePaths {
+		int numPaths = 0;
+		double[] logProbs = new double[4];
+		// The previous state of each path, and the rank of the path to it
+		int[] prevTags = new int[4];
+		int[] prevRanks = new int[4];
+		PriorityQueue<Candidate> candidates = null;
+
+		void add(double logProb, int prevTag, int prevRank) {
+			if (numPaths == logProbs.length) {
+				double[] newLogProbs = new double[numPaths * 2];
+				int[] newPrevTags = new int[numPaths * 2];
+				int[] newPrevRanks = new int[numPaths * 2];
+				System.arraycopy(logProbs, 0, newLogProbs, 0, numPaths);
+				System.arraycopy(prevTags, 0, newPrevTags, 0, numPaths);
+				System.arraycopy(prevRanks, 0, newPrevRanks, 0, numPaths);
+				logProbs = newLogProbs;
+				prevTags = newPrevTags;
+				prevRanks = newPrevRanks;
+			}
+			logProbs[numPaths] = logProb;
+			prevTags[numPaths] = prevTag;
+			prevRanks[numPaths] = prevRank;
+			numPaths++;
+		}
+	}
+
+	private static class Candidate {
+		final double logProb;
+		final int prevTag;
+		final int prevRank;
+
+		Candidate(double logProb, int prevTag, int prevRank) {
+			this.logProb = logProb;
+			this.prevTag = prevTag;
+			this.prevRank = prevRank;
+		}
+	}
+
+	// Best candidate first, ties broken by the lowest previous tag id and then
+	// the lowest rank
+	private static final Comparator<Candidate> BEST_FIRST = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			if (a.logProb != b.logProb)
+				return a.logProb > b.logProb ? -1 : 1;
+			if (a.prevTag != b.prevTag)
+				return a.prevTag - b.prevTag;
+			return a.prevRank - b.prevRank;
+		}
+	};
+
+	private TrainedStatistics trainedStatistics;
+	private PreparedLine line;
+	private int numTags;
+	private int[] stateIds;
+	private int startTagId;
+	private int endTagId;
+	private int defaultTagId;
+	private int quoteTagId;
+
+	private int numTokens;
+	private double[][] logTransition;
+	private int[][] predecessorTagIds;
+	// log(viterbi(s,t)) and the best previous tag for word t and tag s, at
+	// index t * numTags + s
+	private double[] scores;
+	private byte[] backPointers;
+	// Paths to each state of the trellis, at index t * numTags + s, created
+	// when first needed. The paths to </s> after the last word are at index
+	// numTokens * numTags + id of </s>
+	private StatePaths[] statePaths;
+	// The tags of the states walked back by addNextPath(), from the last word
+	private int[] chainTags;
+	// Number of paths given out for the current line
+	private int numPathsReturned;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 */
+	public KBestDecoder(TrainedStatistics trainedStatistics) {
+		this.trainedStatistics = trainedStatistics;
+		line = new PreparedLine();
+		numTags = ALL_POS_TAGS.size();
+		stateIds = ALL_POS_TAGS.getWordTagIds();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		defaultTagId = ALL_POS_TAGS.getId("NN");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+		predecessorTagIds = new int[numTags][];
+		scores = new double[0];
+		backPointers = new byte[0];
+		chainTags = new int[0];
+		numTokens = 0;
+	}
+
+	/**
+	 * Find the k best sequences of tags for the words in a line.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @param k
+	 *            Number of sequences
+	 * @return At most k sequences, from the best
+	 */
+	public List<ScoredTagSequence> tag(String[] tokens, int k) throws IllegalStateException {
+		setLine(tokens);
+		List<ScoredTagSequence> sequences = new ArrayList<ScoredTagSequence>();
+		ScoredTagSequence sequence;
+		while (sequences.size() < k && (sequence = nextBest()) != null)
+			sequences.add(sequence);
+		return sequences;
+	}
+
+	/**
+	 * Start a new line and fill in its trellis.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 */
+	public void setLine(String[] tokens) throws IllegalStateException {
+		line.prepare(trainedStatistics, tokens);
+		numTokens = tokens.length;
+		SparseTransitions transitions = trainedStatistics.getSparseTransitions(Constants.MIN_VALUE);
+		logTransition = transitions.getLogTransitionTable();
+		for (int tag = 0; tag < numTags; tag++)
+			predecessorTagIds[tag] = transitions.getPredecessorTagIds(tag);
+		if (scores.length < numTokens * numTags) {
+			scores = new double[numTokens * numTags];
+			backPointers = new byte[numTokens * numTags];
+		}
+		statePaths = new StatePaths[(numTokens + 1) * numTags];
+		if (chainTags.length < numTokens + 1)
+			chainTags = new int[numTokens + 1];
+		numPathsReturned = 0;
+
+		// Initialisation step for the first word
+		for (int tag : stateIds) {
+			scores[tag] = logTransition[startTagId][tag] + getLogEmission(0, startTagId, tag);
+			backPointers[tag] = (byte) startTagId;
+		}
+
+		// Recursion step for the 2nd word to the last word
+		for (int t = 1; t < numTokens; t++) {
+			int prevRow = (t - 1) * numTags;
+			int row = t * numTags;
+			for (int tag : stateIds) {
+				double bestStateStat = Constants.MIN_VALUE;
+				int bestPrevState = defaultTagId;
+				for (int prevTag : predecessorTagIds[tag]) {
+					double candidateStateStat = scores[prevRow + prevTag] + getLogEdge(t, prevTag, tag);
+					if (candidateStateStat > bestStateStat) {
+						bestStateStat = candidateStateStat;
+						bestPrevState = prevTag;
+					}
+				}
+				scores[row + tag] = bestStateStat;
+				backPointers[row + tag] = (byte) bestPrevState;
+			}
+		}
+	}
+
+	/**
+	 * @return The next best sequence of tags for the current line, or null if
+	 *         there are no more sequences with a probability above 0
+	 */
+	public ScoredTagSequence nextBest() {
+		if (numTokens == 0 || !hasPath(numTokens, endTagId, numPathsReturned))
+			return null;
+
+		// Follow the previous states and ranks back from </s>
+		StatePaths paths = getStatePaths(numTokens, endTagId);
+		double logProb = paths.logProbs[numPathsReturned];
+		String[] tags = new String[numTokens];
+		int rank = numPathsReturned;
+		for (int t = numTokens; t > 0; t--) {
+			int prevTag = paths.prevTags[rank];
+			rank = paths.prevRanks[rank];
+			tags[t - 1] = ALL_POS_TAGS.getTag(prevTag);
+			paths = getStatePaths(t - 1, prevTag);
+		}
+		numPathsReturned++;
+		return new ScoredTagSequence(tags, logProb);
+	}
+
+	/**
+	 * Make sure that the path of the given rank to state tag of word t is
+	 * computed, where word numTokens is the end of the line.
+	 *
+	 * @return false if there is no such path
+	 */
+	private boolean hasPath(int t, int tag, int rank) {
+		StatePaths paths = getStatePaths(t, tag);
+		while (paths.numPaths <= rank)
+			if (!addNextPath(t, tag))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Compute the next best path to state tag of word t.
+	 *
+	 * The path following the last path through the same previous state can
+	 * need the next path to that previous state, and so on back along the
+	 * line. The states are walked back until one whose next path is already
+	 * known, and their next paths are then computed from there forwards, so
+	 * that the stack does not grow with the length of the line.
+	 *
+	 * @return false if there is no other path with a probability above 0
+	 */
+	private boolean addNextPath(int t, int tag) {
+		// Walk back while the previous state does not have the path asked for
+		int numStates = 0;
+		int stateTag = tag;
+		boolean hasNextPrevPath = false;
+		// The first word has a single path from <s>
+		for (int u = t; u > 0; u--) {
+			StatePaths paths = getStatePaths(u, stateTag);
+			if (paths.candidates == null) {
+				// The best paths through the other previous states
+				paths.candidates = new PriorityQueue<Candidate>(8, BEST_FIRST);
+				int bestPrevTag = paths.prevTags[0];
+				int[] prevTags = u == numTokens ? stateIds : predecessorTagIds[stateTag];
+				for (int prevTag : prevTags) {
+					if (prevTag == bestPrevTag)
+						continue;
+					double logProb = scores[(u - 1) * numTags + prevTag] + getLogEdge(u, prevTag, stateTag);
+					if (logProb > Constants.MIN_VALUE)
+						paths.candidates.add(new Candidate(logProb, prevTag, 0));
+				}
+			}
+			chainTags[numStates++] = stateTag;
+
+			int lastPrevTag = paths.prevTags[paths.numPaths - 1];
+			int nextPrevRank = paths.prevRanks[paths.numPaths - 1] + 1;
+			if (nextPrevRank < getStatePaths(u - 1, lastPrevTag).numPaths) {
+				hasNextPrevPath = true;
+				break;
+			}
+			stateTag = lastPrevTag;
+		}
+
+		// Then add the next path to each state, from the earliest word
+		boolean hasNextPath = hasNextPrevPath;
+		for (int i = numStates - 1; i >= 0; i--) {
+			int u = t - i;
+			StatePaths paths = getStatePaths(u, chainTags[i]);
+			// The path following the last path through the same previous
+			// state
+			int lastPrevTag = paths.prevTags[paths.numPaths - 1];
+			int nextPrevRank = paths.prevRanks[paths.numPaths - 1] + 1;
+			if (hasNextPath) {
+				double logProb = getStatePaths(u - 1, lastPrevTag).logProbs[nextPrevRank]
+						+ getLogEdge(u, lastPrevTag, chainTags[i]);
+				if (logProb > Constants.MIN_VALUE)
+					paths.candidates.add(new Candidate(logProb, lastPrevTag, nextPrevRank));
+			}
+
+			Candidate best = paths.candidates.poll();
+			hasNextPath = best != null;
+			if (hasNextPath)
+				paths.add(best.logProb, best.prevTag, best.prevRank);
+		}
+		return hasNextPath;
+	}
+
+	/**
+	 * @return The paths to state tag of word t, starting with the best path
+	 *         from the trellis
+	 */
+	private StatePaths getStatePaths(int t, int tag) {
+		int index = t * numTags + tag;
+		StatePaths paths = statePaths[index];
+		if (paths == null) {
+			paths = new StatePaths();
+			if (t == numTokens) {
+				// Termination step with the transitions to </s>
+				double bestLastStateStat = Constants.MIN_VALUE;
+				int bestLastTag = defaultTagId;
+				for (int prevTag : stateIds) {
+					double candidateStateStat = scores[(t - 1) * numTags + prevTag] + getLogEdge(t, prevTag, tag);
+					if (candidateStateStat > bestLastStateStat) {
+						bestLastStateStat = candidateStateStat;
+						bestLastTag = prevTag;
+					}
+				}
+				paths.add(bestLastStateStat, bestLastTag, 0);
+			} else
+				paths.add(scores[index], backPointers[index], 0);
+			statePaths[index] = paths;
+		}
+		return paths;
+	}
+
+	/**
+	 * @return log(P(tag|prevTag)) + log(P(word t|tag)), without the emission
+	 *         for </s> after the last word
+	 */
+	private double getLogEdge(int t, int prevTag, int tag) {
+		if (t == numTokens)
+			return logTransition[prevTag][tag];
+		return logTransition[prevTag][tag] + getLogEmission(t, prevTag, tag);
+	}
+
+	private double getLogEmission(int t, int prevTag, int tag) {
+		// The second word has a different emission when the previous tag is
+		// ``
+		if (t == 1 && prevTag == quoteTagId && line.getLogEmissionsAfterQuote() != null)
+			return line.getLogEmissionsAfterQuote()[tag];
+		return line.getLogEmissions()[t * numTags + tag];
+	}
+
+}
@@ -18,6 +18,8 @@ public class Learner {
 	private String tuningStatsFileName;
 	private Model modelStatistics;
 	private boolean saveTuningStatistics;
+	// Settings used by the Tagger when computing the accuracy
+	private DecoderSettings decoderSettings;
 
 	// Performance measure
 	private double accuracy;
@@ -34,6 +36,7 @@ public class Learner {
 		this.developmentSetFileName = developmentSetFileName;
 		this.modelStatistics = modelStatistics;
 		saveTuningStatistics = false;
+		decoderSettings = new DecoderSettings();
 	}
 
 	public Learner(Model modelStatistics, String developmentSetFileName, String tuningStatsFileName, String id) {
@@ -42,6 +45,10 @@ public class Learner {
 		saveTuningStatistics = true;
 	}
 
+	public void setDecoderSettings(DecoderSettings decoderSettings) {
+		this.decoderSettings = decoderSettings;
+	}
+
 	/**
 	 * Train the Model object with just the training set. Any smoothing
 	 * parameters will be set to default values.
@@ -145,6 +152,7 @@ public class Learner {
 
 		// Tag the untagged development set with the model statistics
 		Tagger tagger = new Tagger(modelStatistics, untaggedFileName, taggedFileName);
+		tagger.setDecoderSettings(decoderSettings);
 		tagger.tag();
 
 		// Compute similarity with between the development set and the tagged
@@ -170,6 +178,30 @@ public class Learner {
 		accuracy = (double) totalCorrectTagsCount / totalTagsCount;
 	}
 
+	/**
+	 * Computes the loss in accuracy of approximate decoder settings, e.g. a
+	 * beam, compared to exact Viterbi on the development set. The model must
+	 * already be trained. Afterwards getAccuracy() returns the accuracy with
+	 * the approximate settings.
+	 * 
+	 * @param approximateSettings
+	 *            The settings to be compared with exact Viterbi
+	 * @return accuracy with exact Viterbi - accuracy with approximateSettings
+	 */
+	public double evaluateAccuracyLoss(DecoderSettings approximateSettings) {
+		DecoderSettings settings = decoderSettings;
+
+		decoderSettings = new DecoderSettings();
+		evaluateAccuracy();
+		double exactAccuracy = accuracy;
+
+		decoderSettings = approximateSettings;
+		evaluateAccuracy();
+
+		decoderSettings = settings;
+		return exactAccuracy - accuracy;
+	}
+
 	public double getAccuracy() {
 		return accuracy;
 	}
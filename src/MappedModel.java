@@ -0,0 +1,374 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * This class reads the tables of a CompiledModel straight from a model_file
+ * written by ModelFileWriter, which is mapped into memory instead of being
+ * read. Opening it only reads the header and the tables that do not grow with
+ * the vocabulary: the transitions and the unknown word model. The vocabulary
+ * index, the counts and log(P(w|t)) of the words are read by the operating
+ * system from the page cache when a word is first looked up, and the JVMs on
+ * one host that open the same model_file share one copy of them.
+ *
+ * model_file is little-endian. It starts with a header:
+ *
+ * int MAGIC, int VERSION, int number of tags, int flags (1 if second-order),
+ * int vocabulary size, int number of characters of the vocabulary, int number
+ * of buckets of the vocabulary index, int number of (w,t) with C(w,t) > 0,
+ * long seed of the vocabulary index, int number of suffixes, int number of
+ * sections, and the offset of each section as a long.
+ *
+ * Each section starts at a multiple of 8 bytes, in the order of the SECTION_
+ * constants. The tags and suffixes are written as an int length followed by
+ * their chars, so that a model_file built with other POS tags or suffixes is
+ * rejected. Tables indexed by more than one id are flattened row by row.
+ *
+ * log(P(w|t)) is stored for every word and tag, smoothed or not, so that a
+ * known word is one copy of a row, as in CompiledModel, and model_file does
+ * not depend on how the model is smoothed. It costs 8 bytes per tag per word,
+ * most of the file: model_file is about 9 times the size of a serialized
+ * Model, which only keeps C(w,t) (936 KB against 108 KB for the training set
+ * of the course). The section is mapped in chunks of whole rows of at most
+ * Integer.MAX_VALUE bytes, as larger buffers cannot be mapped.
+ *
+ * The mapped buffers are only read at absolute positions, so a MappedModel
+ * can be shared by any number of threads, as a CompiledModel.
+ *
+ * @author Shao Fei
+ *
+ */
+public final class MappedModel implements TrainedStatistics {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+	private static final Suffixes SUFFIXES = new Suffixes();
+
+	static final int MAGIC = 0x504f534d;
+	// Increased whenever the layout changes
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 48;
+
+	// Tag names, then the suffix names each followed by P(suf|t) for all t
+	static final int SECTION_TAGS = 0;
+	static final int SECTION_SUFFIXES = 1;
+	// P(cap|t) and P(t), for all t
+	static final int SECTION_CAPITAL_PROBS = 2;
+	static final int SECTION_TAG_PROBS = 3;
+	// log(P(ti|ti-1)) and log(P(ti|ti-2,ti-1)), empty if not second-order
+	static final int SECTION_TRANSITIONS = 4;
+	static final int SECTION_TRIGRAMS = 5;
+	// The arrays of VocabularyIndex
+	static final int SECTION_CHARS = 6;
+	static final int SECTION_WORD_STARTS = 7;
+	static final int SECTION_DISPLACEMENTS = 8;
+	static final int SECTION_SLOTS = 9;
+	// C(w) and the most frequent tag, for all w
+	static final int SECTION_WORD_COUNTS = 10;
+	static final int SECTION_MOST_FREQUENT_TAGS = 11;
+	// The ids of the tags t with C(w,t) > 0 and C(w,t), as in WordTagCounts
+	static final int SECTION_ROW_STARTS = 12;
+	static final int SECTION_ROW_TAG_IDS = 13;
+	static final int SECTION_ROW_COUNTS = 14;
+	// log(P(w|t)) for all w and t, mapped in chunks
+	static final int SECTION_LOG_EMISSIONS = 15;
+	static final int NUM_SECTIONS = 16;
+
+	private final int numTags;
+	private final boolean isSecondOrder;
+
+	private final int vocabularySize;
+	private final long seed;
+	private final CharBuffer chars;
+	private final IntBuffer wordStarts;
+	private final IntBuffer displacements;
+	private final LongBuffer slots;
+
+	private final IntBuffer wordCounts;
+	private final IntBuffer mostFrequentTagIds;
+	private final IntBuffer rowStarts;
+	private final ByteBuffer rowTagIds;
+	private final IntBuffer rowCounts;
+	// log(P(w|t)) of the words, in chunks of whole rows as one buffer cannot
+	// map more than Integer.MAX_VALUE bytes
+	private final int numWordsPerChunk;
+	private final DoubleBuffer[] logEmissionChunks;
+
+	private final UnknownWordModel unknownWordModel;
+	private final double[][] logTransitionTable;
+	private final SparseTransitions sparseTransitions;
+	// null if the model is not second-order
+	private final double[][] logTrigramTable;
+
+	/**
+	 * Map a model_file written by ModelFileWriter.
+	 *
+	 * @param fileName
+	 *            The model_file
+	 * @throws IOException
+	 *             If the file cannot be read, or is not a model_file of this
+	 *             version built with the same POS tags and suffixes
+	 */
+	public MappedModel(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = map(channel, 0, HEADER_SIZE + 8 * NUM_SECTIONS);
+			if (header.getInt(0) != MAGIC)
+				throw new IOException(fileName + " is not a binary model_file");
+			if (header.getInt(4) != VERSION)
+				throw new IOException(fileName + " has version " + header.getInt(4) + " instead of " + VERSION);
+			numTags = header.getInt(8);
+			isSecondOrder = (header.getInt(12) & 1) != 0;
+			vocabularySize = header.getInt(16);
+			int numChars = header.getInt(20);
+			int numBuckets = header.getInt(24);
+			int numPairs = header.getInt(28);
+			seed = header.getLong(32);
+			int numSuffixes = header.getInt(40);
+			if (header.getInt(44) != NUM_SECTIONS)
+				throw new IOException(fileName + " has " + header.getInt(44) + " sections instead of " + NUM_SECTIONS);
+			long[] offsets = new long[NUM_SECTIONS];
+			for (int section = 0; section < NUM_SECTIONS; section++)
+				offsets[section] = header.getLong(HEADER_SIZE + 8 * section);
+			// The size of a section is the distance to the next one, so the
+			// sections must be in order after the header and in the file
+			long sectionEnd = HEADER_SIZE + 8 * NUM_SECTIONS;
+			for (int section = 0; section < NUM_SECTIONS; section++) {
+				if (offsets[section] < sectionEnd || offsets[section] > channel.size())
+					throw new IOException(fileName + " has section " + section + " at " + offsets[section]
+							+ ", out of order or past the end of the file");
+				sectionEnd = offsets[section];
+			}
+
+			// Tags and suffixes
+			if (numTags != ALL_POS_TAGS.size())
+				throw new IOException(fileName + " was built with " + numTags + " POS tags instead of "
+						+ ALL_POS_TAGS.size());
+			ByteBuffer tags = map(channel, offsets[SECTION_TAGS], offsets[SECTION_SUFFIXES] - offsets[SECTION_TAGS]);
+			for (int tag = 0; tag < numTags; tag++)
+				if (!readString(tags).equals(ALL_POS_TAGS.getTag(tag)))
+					throw new IOException(fileName + " was built with other POS tags");
+			ByteBuffer suffixes = map(channel, offsets[SECTION_SUFFIXES],
+					offsets[SECTION_CAPITAL_PROBS] - offsets[SECTION_SUFFIXES]);
+			Map<String, double[]> suffixProbs = new HashMap<String, double[]>();
+			for (int i = 0; i < numSuffixes; i++) {
+				String suffix = readString(suffixes);
+				double[] probs = new double[numTags];
+				suffixes.asDoubleBuffer().get(probs);
+				suffixes.position(suffixes.position() + 8 * numTags);
+				suffixProbs.put(suffix, probs);
+			}
+			Iterator<String> suffixIter = SUFFIXES.getIterator();
+			while (suffixIter.hasNext())
+				if (!suffixProbs.containsKey(suffixIter.next()))
+					throw new IOException(fileName + " was built with other suffixes");
+
+			// The tables that do not grow with the vocabulary are copied
+			unknownWordModel = new UnknownWordModel(
+					readDoubles(mapDoubles(channel, offsets[SECTION_CAPITAL_PROBS], numTags), numTags),
+					suffixProbs, readDoubles(mapDoubles(channel, offsets[SECTION_TAG_PROBS], numTags), numTags));
+			logTransitionTable = readTable(mapDoubles(channel, offsets[SECTION_TRANSITIONS], numTags * numTags),
+					numTags, numTags);
+			logTrigramTable = isSecondOrder ? readTable(
+					mapDoubles(channel, offsets[SECTION_TRIGRAMS], numTags * numTags * numTags), numTags * numTags,
+					numTags) : null;
+			sparseTransitions = new SparseTransitions(logTransitionTable, Constants.MIN_VALUE);
+			sparseTransitions.getTransitionTableByTag();
+
+			// The tables of the words stay mapped
+			chars = map(channel, offsets[SECTION_CHARS], 2L * numChars).asCharBuffer();
+			wordStarts = mapInts(channel, offsets[SECTION_WORD_STARTS], vocabularySize + 1);
+			displacements = mapInts(channel, offsets[SECTION_DISPLACEMENTS], numBuckets);
+			slots = map(channel, offsets[SECTION_SLOTS], 8L * vocabularySize).asLongBuffer();
+			wordCounts = mapInts(channel, offsets[SECTION_WORD_COUNTS], vocabularySize);
+			mostFrequentTagIds = mapInts(channel, offsets[SECTION_MOST_FREQUENT_TAGS], vocabularySize);
+			rowStarts = mapInts(channel, offsets[SECTION_ROW_STARTS], vocabularySize + 1);
+			rowTagIds = map(channel, offsets[SECTION_ROW_TAG_IDS], numPairs);
+			rowCounts = mapInts(channel, offsets[SECTION_ROW_COUNTS], numPairs);
+			numWordsPerChunk = Integer.MAX_VALUE / (8 * numTags);
+			logEmissionChunks = new DoubleBuffer[(vocabularySize + numWordsPerChunk - 1) / numWordsPerChunk];
+			for (int chunk = 0; chunk < logEmissionChunks.length; chunk++) {
+				long firstWord = (long) chunk * numWordsPerChunk;
+				long numWords = Math.min(numWordsPerChunk, vocabularySize - firstWord);
+				logEmissionChunks[chunk] = mapDoubles(channel,
+						offsets[SECTION_LOG_EMISSIONS] + 8L * numTags * firstWord, numWords * numTags);
+			}
+		} finally {
+			// The mapped buffers stay valid after the file is closed
+			file.close();
+		}
+	}
+
+	/**
+	 * @param fileName
+	 * @return true if the file starts with the MAGIC of a binary model_file,
+	 *         false if it is e.g. a serialized Model
+	 */
+	public static boolean isModelFile(String fileName) throws IOException {
+		FileInputStream in = new FileInputStream(fileName);
+		try {
+			byte[] magic = new byte[4];
+			return in.read(magic) == 4
+					&& ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+		if (size < 0)
+			throw new IOException("model_file has a section of " + size + " bytes");
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Section of " + size + " bytes is too large to be mapped");
+		if (offset + size > channel.size())
+			throw new IOException("model_file is truncated");
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static IntBuffer mapInts(FileChannel channel, long offset, long length) throws IOException {
+		return map(channel, offset, 4 * length).asIntBuffer();
+	}
+
+	private static DoubleBuffer mapDoubles(FileChannel channel, long offset, long length) throws IOException {
+		return map(channel, offset, 8 * length).asDoubleBuffer();
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		char[] string = new char[buffer.getInt()];
+		for (int i = 0; i < string.length; i++)
+			string[i] = buffer.getChar();
+		return new String(string);
+	}
+
+	private static double[] readDoubles(DoubleBuffer buffer, int length) {
+		double[] values = new double[length];
+		buffer.get(values);
+		return values;
+	}
+
+	private static double[][] readTable(DoubleBuffer buffer, int numRows, int numColumns) {
+		double[][] table = new double[numRows][numColumns];
+		for (int row = 0; row < numRows; row++)
+			buffer.get(table[row]);
+		return table;
+	}
+
+	@Override
+	public boolean isTrained() {
+		return true;
+	}
+
+	@Override
+	public boolean isSecondOrder() {
+		return isSecondOrder;
+	}
+
+	public int getVocabularySize() {
+		return vocabularySize;
+	}
+
+	@Override
+	public void fillLogEmissionColumn(String word, double[] column, int offset) {
+		int vocabularyId = getVocabularyId(word);
+		// Word is in vocabulary
+		if (vocabularyId != -1) {
+			DoubleBuffer logEmissions = logEmissionChunks[vocabularyId / numWordsPerChunk];
+			int row = vocabularyId % numWordsPerChunk * numTags;
+			for (int tag = 0; tag < numTags; tag++)
+				column[offset + tag] = logEmissions.get(row + tag);
+			return;
+		}
+
+		// Word is not in vocabulary, estimate P(w|t) using unknown word model
+		unknownWordModel.fillLogEmissionColumn(word, column, offset);
+	}
+
+	/**
+	 * Look up a word as VocabularyIndex.getId() does, in the mapped arrays.
+	 */
+	@Override
+	public int getVocabularyId(CharSequence word) {
+		if (vocabularySize == 0)
+			return -1;
+		long hash = VocabularyIndex.hash(word, seed);
+		int bucket = VocabularyIndex.bucketOf(hash, displacements.limit());
+		long slot = slots.get(VocabularyIndex.slotOf(hash, displacements.get(bucket), vocabularySize));
+		if ((int) (slot >>> 32) != (int) hash)
+			return -1;
+		int id = (int) slot;
+		int start = wordStarts.get(id);
+		int length = wordStarts.get(id + 1) - start;
+		if (word.length() != length)
+			return -1;
+		for (int i = 0; i < length; i++)
+			if (word.charAt(i) != chars.get(start + i))
+				return -1;
+		return id;
+	}
+
+	@Override
+	public int getWordCount(int vocabularyId) {
+		return wordCounts.get(vocabularyId);
+	}
+
+	@Override
+	public int getObservedTagIds(int vocabularyId, int[] tagIds) {
+		int rowStart = rowStarts.get(vocabularyId);
+		int numObservedTags = rowStarts.get(vocabularyId + 1) - rowStart;
+		for (int i = 0; i < numObservedTags; i++)
+			tagIds[i] = rowTagIds.get(rowStart + i);
+		return numObservedTags;
+	}
+
+	@Override
+	public int getMostFrequentTagId(int vocabularyId) {
+		return mostFrequentTagIds.get(vocabularyId);
+	}
+
+	@Override
+	public int getWordTagCount(String word, String tag) {
+		int vocabularyId = getVocabularyId(word);
+		if (vocabularyId == -1)
+			return 0;
+		int tagId = ALL_POS_TAGS.getId(tag);
+		for (int i = rowStarts.get(vocabularyId); i < rowStarts.get(vocabularyId + 1); i++)
+			if (rowTagIds.get(i) == tagId)
+				return rowCounts.get(i);
+		return 0;
+	}
+
+	@Override
+	public double[][] getLogTransitionTable() {
+		return logTransitionTable;
+	}
+
+	/**
+	 * The predecessor lists for MIN_VALUE are built when the model is opened.
+	 * Those for a higher minimum are built again on every call, so a decoder
+	 * that uses one should keep it.
+	 */
+	@Override
+	public SparseTransitions getSparseTransitions(double minLogTransitionProb) {
+		if (sparseTransitions.isBuiltFrom(logTransitionTable, minLogTransitionProb))
+			return sparseTransitions;
+		return new SparseTransitions(logTransitionTable, minLogTransitionProb);
+	}
+
+	@Override
+	public double[][] getLogTrigramTable() throws IllegalStateException {
+		if (logTrigramTable == null)
+			throw new IllegalStateException("Model has no trigram counts!");
+		return logTrigramTable;
+	}
+
+}
@@ -0,0 +1,148 @@
+
+/**
+ * This class computes a whole trellis column as a max-plus product of the
+ * previous column with the log transition table: for each tag, the maximum
+ * over all previous tags of log(viterbi(s',t-1)) + log(as',s) + log(bs(t)).
+ *
+ * The previous tags are visited in blocks of LANES independent accumulators,
+ * one per lane, so that the additions and comparisons of a block do not wait
+ * on each other. Each lane keeps the first previous tag giving its maximum,
+ * and the lanes are merged by taking the lowest tag id among the tied
+ * maximums, which gives the same result as visiting the previous tags one by
+ * one.
+ *
+ * The kernel is used for dense columns only, and is chosen once at startup.
+ * It is on by default and can be turned off by running with
+ * -Dviterbi.kernel=scalar.
+ *
+ * @author Shao Fei
+ *
+ */
+public class MaxPlusKernel {
+
+	public static final int LANES = 4;
+	private static final boolean IS_ENABLED = !"scalar".equals(System.getProperty("viterbi.kernel"));
+
+	private MaxPlusKernel() {}
+
+	public static boolean isEnabled() {
+		return IS_ENABLED;
+	}
+
+	/**
+	 * Compute the cells of the given tags in a trellis column.
+	 *
+	 * @param prevScores
+	 *            log(viterbi(s',t-1)) at the id of each previous tag s',
+	 *            MIN_VALUE for the tags that are not expanded. The length
+	 *            must be numTags.
+	 * @param logTransitionByTag
+	 *            log(as',s) at [id of s][id of s']
+	 * @param tags
+	 *            Ids of the tags s of the cells to be computed
+	 * @param numTagsToCompute
+	 *            Number of ids in tags
+	 * @param logEmissions
+	 *            log(bs(t)) at emissionOffset + id of s
+	 * @param emissionOffset
+	 * @param scores
+	 *            Receives log(viterbi(s,t)) at row + id of s
+	 * @param backPointers
+	 *            Receives the best previous tag at row + id of s
+	 * @param row
+	 * @param numTags
+	 *            Number of tags, including <s> and </s>
+	 * @param defaultTag
+	 *            Best previous tag when none gives more than MIN_VALUE
+	 */
+	public static void computeColumn(double[] prevScores, double[][] logTransitionByTag, int[] tags,
+			int numTagsToCompute, double[] logEmissions, int emissionOffset, double[] scores, byte[] backPointers,
+			int row, int numTags, int defaultTag) {
+		int blockEnd = numTags - numTags % LANES;
+		for (int i = 0; i < numTagsToCompute; i++) {
+			int tag = tags[i];
+			double logEmission = logEmissions[emissionOffset + tag];
+			if (logEmission == Constants.MIN_VALUE) {
+				scores[row + tag] = Constants.MIN_VALUE;
+				backPointers[row + tag] = (byte) defaultTag;
+				continue;
+			}
+			double[] logTransition = logTransitionByTag[tag];
+
+			double best0 = Constants.MIN_VALUE, best1 = Constants.MIN_VALUE;
+			double best2 = Constants.MIN_VALUE, best3 = Constants.MIN_VALUE;
+			int arg0 = -1, arg1 = -1, arg2 = -1, arg3 = -1;
+			int prevTag = 0;
+			for (; prevTag < blockEnd; prevTag += LANES) {
+				double candidate0 = prevScores[prevTag] + logTransition[prevTag] + logEmission;
+				double candidate1 = prevScores[prevTag + 1] + logTransition[prevTag + 1] + logEmission;
+				double candidate2 = prevScores[prevTag + 2] + logTransition[prevTag + 2] + logEmission;
+				double candidate3 = prevScores[prevTag + 3] + logTransition[prevTag + 3] + logEmission;
+				if (candidate0 > best0) {
+					best0 = candidate0;
+					arg0 = prevTag;
+				}
+				if (candidate1 > best1) {
+					best1 = candidate1;
+					arg1 = prevTag + 1;
+				}
+				if (candidate2 > best2) {
+					best2 = candidate2;
+					arg2 = prevTag + 2;
+				}
+				if (candidate3 > best3) {
+					best3 = candidate3;
+					arg3 = prevTag + 3;
+				}
+			}
+			// Remaining previous tags go to lane 0
+			for (; prevTag < numTags; prevTag++) {
+				double candidate = prevScores[prevTag] + logTransition[prevTag] + logEmission;
+				if (candidate > best0) {
+					best0 = candidate;
+					arg0 = prevTag;
+				}
+			}
+
+			// Merge the lanes, taking the lowest tag id among tied maximums
+			double best = best0;
+			int arg = arg0;
+			if (best1 > best || (best1 == best && arg1 != -1 && (arg == -1 || arg1 < arg))) {
+				best = best1;
+				arg = arg1;
+			}
+			if (best2 > best || (best2 == best && arg2 != -1 && (arg == -1 || arg2 < arg))) {
+				best = best2;
+				arg = arg2;
+			}
+			if (best3 > best || (best3 == best && arg3 != -1 && (arg == -1 || arg3 < arg))) {
+				best = best3;
+				arg = arg3;
+			}
+			scores[row + tag] = best;
+			backPointers[row + tag] = (byte) (arg == -1 ? defaultTag : arg);
+		}
+	}
+
+	/**
+	 * Take one previous tag into the best statistics of the lines of a
+	 * BatchDecoder group: for each line b, the maximum of bestScores[b] and
+	 * log(viterbi(s',t-1)) + log(as',s). The lines are the lanes, and no
+	 * previous tag is kept, so the loop has no branch and the JIT compiles it
+	 * to vector instructions. A comparison instead of Math.max would branch
+	 * on every line, and the branch cannot be predicted.
+	 *
+	 * @param prevScores
+	 *            log(viterbi(s',t-1)) of each line
+	 * @param logTransition
+	 *            log(as',s)
+	 * @param bestScores
+	 *            Best statistic of each line so far
+	 * @param numLines
+	 */
+	public static void maxPlusLines(double[] prevScores, double logTransition, double[] bestScores, int numLines) {
+		for (int b = 0; b < numLines; b++)
+			bestScores[b] = Math.max(bestScores[b], prevScores[b] + logTransition);
+	}
+
+}
@@ -1,4 +1,7 @@
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectInputValidation;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -6,7 +9,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
-public abstract class Model implements Serializable {
+public abstract class Model implements Serializable, TrainedStatistics {
 
 	private static final long serialVersionUID = -957852697501339240L;
 
@@ -19,8 +22,17 @@ public abstract class Model implements Serializable {
 
 	transient private String trainingFile;
 
+	// Only used while counting, and to read model_file written before
+	// vocabularyIndex, as vocabularyIndex replaces it
+	private Set<String> vocabulary;
+	// Dense id of each word in vocabulary
 	/** Written to model_file **/
-	protected Set<String> vocabulary;
+	protected VocabularyIndex vocabularyIndex;
+	// Ids of the tags t with C(w,t) > 0, in increasing order, for each word
+	// id. I.e. the tag dictionary
+	transient private int[][] observedTagIds;
+	// Id of the tag t with the highest C(w,t) for each word id
+	transient private int[] mostFrequentTagIds;
 
 	// Count of total words/tags pairs. Used during smoothing
 	protected int totalTokensCount;
@@ -28,14 +40,24 @@ public abstract class Model implements Serializable {
 	// C(t)
 	/** Written to model_file **/
 	protected Map<String, Integer> tagCount;
-	// C(w)
+	// C(w,t) keyed by t and then by w. Only used while counting, and to read
+	// model_file written before wordTagCounts, as wordTagCounts replaces it
+	private Map<String, Map<String, Integer>> tagAndWordCount;
+	// C(w,t) and C(w) by word id
 	/** Written to model_file **/
-	protected Map<String, Integer> wordCount;
-	// C(w,t)
-	/** Written to model_file **/
-	protected Map<String, Map<String, Integer>> tagAndWordCount;
+	protected WordTagCounts wordTagCounts;
 	// C(ti,ti-1)
 	protected Map<String, Map<String, Integer>> prevTagAndTagCount;
+	// C(ti-2,ti-1,ti), keyed by "ti-2 ti-1" and then by ti. The first word
+	// follows "<s> <s>". null in model_file written before it was counted
+	/** Written to model_file **/
+	protected Map<String, Map<String, Integer>> prevTwoTagsAndTagCount;
+	// Whether the tagger decodes with P(ti|ti-2,ti-1) instead of P(ti|ti-1)
+	/** Written to model_file **/
+	protected boolean isSecondOrder;
+	// Weight of C(ti-2,ti-1,ti) / C(ti-2,ti-1) in P(ti|ti-2,ti-1), found by
+	// deleted interpolation. The rest goes to P(ti|ti-1)
+	transient private double trigramWeight;
 
 	// Count of capitalization and suffixes in words in training set. Used to
 	// calculate emission probabilities for unknown words
@@ -49,6 +71,17 @@ public abstract class Model implements Serializable {
 	/** Written to model_file **/
 	protected boolean isTrained;
 
+	// log(P(ti|ti-1)) at [id of ti-1][id of ti], using the tag ids in
+	// ALL_POS_TAGS, including the <s> row and the </s> column. Rebuilt
+	// whenever the smoothing parameters change
+	transient private double[][] logTransitionTable;
+	// Predecessor lists for the last minimum log(P(ti|ti-1)) asked for
+	transient private SparseTransitions sparseTransitions;
+	// log(P(ti|ti-2,ti-1)) at [id of ti-2 * number of tags + id of ti-1][id of
+	// ti], and the log(P(ti|ti-1)) table it was computed from
+	transient private double[][] logTrigramTable;
+	transient private double[][] trigramSourceTable;
+
 	public Model(String trainingFile) {
 		initLearner();
 		this.trainingFile = trainingFile;
@@ -56,13 +89,17 @@ public abstract class Model implements Serializable {
 
 	public void initLearner() {
 		isTrained = false;
+		logTransitionTable = null;
 
 		totalTokensCount = 0;
 		vocabulary = new HashSet<String>();
+		vocabularyIndex = null;
 		tagCount = new HashMap<String, Integer>();
-		wordCount = new HashMap<String, Integer>();
 		tagAndWordCount = new HashMap<String, Map<String, Integer>>();
+		wordTagCounts = null;
 		prevTagAndTagCount = new HashMap<String, Map<String, Integer>>();
+		prevTwoTagsAndTagCount = new HashMap<String, Map<String, Integer>>();
+		logTrigramTable = null;
 
 		tagAndContainsCapitalCount = new HashMap<String, Integer>();
 		tagAndSuffixCount = new HashMap<String, Map<String, Integer>>();
@@ -96,6 +133,7 @@ public abstract class Model implements Serializable {
 		// emission and transition probabilities
 		while (reader.nextLine()) {
 			String prevTag = "<s>";
+			String prevPrevTag = "<s>";
 			while (reader.nextToken()) {
 
 				// Get the word and tag for this token
@@ -126,11 +164,6 @@ public abstract class Model implements Serializable {
 
 				// Update the vocabulary
 				vocabulary.add(word);
-				// Update word count
-				if (!wordCount.containsKey(word))
-					wordCount.put(word, 0);
-				wordCount.put(word, wordCount.get(word) + 1);
-
 				// Update the tag count
 				if (!ALL_POS_TAGS.has(tag))
 					throw new NoSuchFieldException(tag + " not found in list of POS tags");
@@ -150,6 +183,7 @@ public abstract class Model implements Serializable {
 				if (!prevTagAndTagCount.get(prevTag).containsKey(tag))
 					prevTagAndTagCount.get(prevTag).put(tag, 0);
 				prevTagAndTagCount.get(prevTag).put(tag, prevTagAndTagCount.get(prevTag).get(tag) + 1);
+				addTrigramCount(prevPrevTag, prevTag, tag);
 
 				// If this is the last token, update the additional transition
 				// probability P(</s>|tT)
@@ -158,6 +192,7 @@ public abstract class Model implements Serializable {
 					if (!prevTagAndTagCount.get(tag).containsKey("</s>"))
 						prevTagAndTagCount.get(tag).put("</s>", 0);
 					prevTagAndTagCount.get(tag).put("</s>", prevTagAndTagCount.get(tag).get("</s>") + 1);
+					addTrigramCount(prevTag, tag, "</s>");
 				}
 
 				// Update C(cap, t)
@@ -172,13 +207,140 @@ public abstract class Model implements Serializable {
 					tagAndSuffixCount.get(tag).put(suffix, tagAndSuffixCount.get(tag).get(suffix) + 1);
 				}
 
+				prevPrevTag = prevTag;
 				prevTag = tag;
 			}
 		}
 		
+		indexVocabulary();
+		indexObservedTags();
+		computeTrigramWeight();
 		isTrained = true;
 	}
 
+	/**
+	 * Increment C(ti-2,ti-1,ti)
+	 */
+	private void addTrigramCount(String prevPrevTag, String prevTag, String tag) {
+		String history = prevPrevTag + " " + prevTag;
+		if (!prevTwoTagsAndTagCount.containsKey(history))
+			prevTwoTagsAndTagCount.put(history, new HashMap<String, Integer>());
+		Map<String, Integer> tagCounts = prevTwoTagsAndTagCount.get(history);
+		if (!tagCounts.containsKey(tag))
+			tagCounts.put(tag, 0);
+		tagCounts.put(tag, tagCounts.get(tag) + 1);
+	}
+
+	/**
+	 * Find the weight of the trigram estimate in P(ti|ti-2,ti-1) by deleted
+	 * interpolation: each trigram, taken out of the counts once, votes with
+	 * its count for the estimate that predicts it best, C(ti-2,ti-1,ti) /
+	 * C(ti-2,ti-1) or C(ti-1,ti) / C(ti-1).
+	 */
+	private void computeTrigramWeight() {
+		trigramWeight = 0.0;
+		if (prevTwoTagsAndTagCount == null)
+			return;
+		double trigramVotes = 0;
+		double bigramVotes = 0;
+		Iterator<String> historyIter = prevTwoTagsAndTagCount.keySet().iterator();
+		while (historyIter.hasNext()) {
+			String history = historyIter.next();
+			String prevTag = history.substring(history.indexOf(' ') + 1);
+			Map<String, Integer> tagCounts = prevTwoTagsAndTagCount.get(history);
+			int historyCount = sum(tagCounts);
+			Iterator<String> tagIter = tagCounts.keySet().iterator();
+			while (tagIter.hasNext()) {
+				String tag = tagIter.next();
+				int count = tagCounts.get(tag);
+				double trigramEstimate = historyCount > 1 ? (count - 1.0) / (historyCount - 1) : 0.0;
+				int prevTagCount = tagCount.get(prevTag);
+				double bigramEstimate = prevTagCount > 1
+						? (prevTagAndTagCount.get(prevTag).get(tag) - 1.0) / (prevTagCount - 1) : 0.0;
+				if (trigramEstimate > bigramEstimate)
+					trigramVotes += count;
+				else
+					bigramVotes += count;
+			}
+		}
+		if (trigramVotes + bigramVotes > 0)
+			trigramWeight = trigramVotes / (trigramVotes + bigramVotes);
+	}
+
+	private static int sum(Map<String, Integer> counts) {
+		int total = 0;
+		Iterator<Integer> countIter = counts.values().iterator();
+		while (countIter.hasNext())
+			total += countIter.next();
+		return total;
+	}
+
+	/**
+	 * Give dense ids to the words of the vocabulary and move C(w,t) to
+	 * wordTagCounts. The set and the maps are not needed after this.
+	 */
+	private void indexVocabulary() {
+		vocabularyIndex = new VocabularyIndex(vocabulary.toArray(new String[vocabulary.size()]));
+		wordTagCounts = new WordTagCounts(vocabularyIndex, tagAndWordCount);
+		vocabulary = null;
+		tagAndWordCount = null;
+	}
+
+	/**
+	 * Index the tags seen with each word and its most frequent tag by word id
+	 */
+	private void indexObservedTags() {
+		int vocabularySize = wordTagCounts.size();
+		observedTagIds = new int[vocabularySize][];
+		mostFrequentTagIds = new int[vocabularySize];
+		for (int wordId = 0; wordId < vocabularySize; wordId++) {
+			int rowStart = wordTagCounts.getRowStart(wordId);
+			int[] tagIds = new int[wordTagCounts.getRowEnd(wordId) - rowStart];
+			// Ties go to the lowest tag id
+			int bestCount = 0;
+			for (int i = 0; i < tagIds.length; i++) {
+				tagIds[i] = wordTagCounts.getTagId(rowStart + i);
+				if (wordTagCounts.getCountAt(rowStart + i) > bestCount) {
+					bestCount = wordTagCounts.getCountAt(rowStart + i);
+					mostFrequentTagIds[wordId] = tagIds[i];
+				}
+			}
+			observedTagIds[wordId] = tagIds;
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		// model_file written before vocabularyIndex has the vocabulary as a
+		// set and C(w,t) keyed by t
+		if (vocabularyIndex == null)
+			indexVocabulary();
+		indexObservedTags();
+		computeTrigramWeight();
+		// The tables that depend on the parameters of the subclasses can only
+		// be computed once the whole model has been read
+		in.registerValidation(new ObjectInputValidation() {
+			@Override
+			public void validateObject() {
+				initDerivedTables();
+			}
+		}, 0);
+	}
+
+	/**
+	 * Compute the tables derived from the counts and the current parameters,
+	 * which would otherwise be computed on first use, so that the first line
+	 * tagged after reading model_file costs the same as the others.
+	 * Subclasses with tables of their own compute them before calling this.
+	 */
+	protected void initDerivedTables() {
+		if (!isTrained)
+			return;
+		compileLogTransitionTable();
+		if (isSecondOrder)
+			getLogTrigramTable();
+	}
+
 	/**
 	 * Go to the next set of parameters in the model. Used during tuning.
 	 * 
@@ -214,15 +376,17 @@ public abstract class Model implements Serializable {
 	public double getWordGivenTag(String tag, String word) throws IllegalStateException {
 		if (!isTrained)
 			throw new IllegalStateException("Model is not trained!");
+		int vocabularyId = getVocabularyId(word);
 		// Word is in vocabulary
-		if (vocabulary.contains(word)) {
+		if (vocabularyId != -1) {
 			// P(w|<s>) and P(w|</s>) = 0
 			if (tag.equals("<s>") || tag.equals("</s>"))
 				return 0.0;
-			else if (tagAndWordCount.get(tag).containsKey(word))
-				return nonZeroEmissionProb(tag, word);
+			int count = wordTagCounts.getCount(vocabularyId, ALL_POS_TAGS.getId(tag));
+			if (count > 0)
+				return nonZeroEmissionProb(tag, vocabularyId, count);
 			else
-				return zeroEmissionProb(tag, word);
+				return zeroEmissionProb(tag, vocabularyId);
 //			return wordGivenTag.get(tag).get(word);
 		}
 		// Word is not in vocabulary, estimate P(w|t) using unknown word model
@@ -230,6 +394,108 @@ public abstract class Model implements Serializable {
 			return emissionProbUnknownWordModel(tag, word);
 	}
 
+	/**
+	 * Compute log(P(w|t)) of a word w for all tags t at once. Whether the
+	 * word is in the vocabulary, and the features used by the unknown word
+	 * model, are only determined once for all the tags.
+	 * 
+	 * @param word
+	 *            The query word w
+	 * @param column
+	 *            Receives log(P(w|t)) at offset + id of t, MIN_VALUE where
+	 *            P(w|t) = 0 and for the tags <s> and </s>
+	 * @param offset
+	 */
+	public void fillLogEmissionColumn(String word, double[] column, int offset) throws IllegalStateException {
+		if (!isTrained)
+			throw new IllegalStateException("Model is not trained!");
+		int numTags = ALL_POS_TAGS.size();
+		int vocabularyId = getVocabularyId(word);
+		// Word is in vocabulary
+		if (vocabularyId != -1) {
+			// The row of the word has its tags in increasing order of id, so it
+			// is walked along with the tags
+			int entry = wordTagCounts.getRowStart(vocabularyId);
+			int rowEnd = wordTagCounts.getRowEnd(vocabularyId);
+			for (int id = 0; id < numTags; id++) {
+				String tag = ALL_POS_TAGS.getTag(id);
+				// P(w|<s>) and P(w|</s>) = 0
+				if (tag.equals("<s>") || tag.equals("</s>"))
+					column[offset + id] = Constants.MIN_VALUE;
+				else if (entry < rowEnd && wordTagCounts.getTagId(entry) == id)
+					column[offset + id] = toLogProb(
+							nonZeroEmissionProb(tag, vocabularyId, wordTagCounts.getCountAt(entry++)));
+				else
+					column[offset + id] = toLogProb(zeroEmissionProb(tag, vocabularyId));
+			}
+		}
+		// Word is not in vocabulary, estimate P(w|t) using unknown word model
+		else {
+			boolean containsCapital = containsCapital(word);
+			String[] suffixes = SUFFIXES.getAllSuffixes(word);
+			for (int id = 0; id < numTags; id++) {
+				String tag = ALL_POS_TAGS.getTag(id);
+				if (tag.equals("<s>") || tag.equals("</s>"))
+					column[offset + id] = Constants.MIN_VALUE;
+				else
+					column[offset + id] = toLogProb(emissionProbUnknownWordModel(tag, containsCapital, suffixes));
+			}
+		}
+	}
+
+	/**
+	 * @param word
+	 * @return The dense id of the word, or -1 if the word is not in the
+	 *         vocabulary
+	 */
+	public int getVocabularyId(CharSequence word) {
+		return vocabularyIndex.getId(word);
+	}
+
+	/**
+	 * @param vocabularyId
+	 *            Id of a word w in the vocabulary
+	 * @return C(w)
+	 */
+	public int getWordCount(int vocabularyId) {
+		return wordTagCounts.getWordCount(vocabularyId);
+	}
+
+	/**
+	 * Copy the ids of the tags t with C(w,t) > 0 into a buffer.
+	 *
+	 * @param vocabularyId
+	 *            Id of a word w in the vocabulary
+	 * @param tagIds
+	 *            Receives the ids in increasing order. Must have room for all
+	 *            the tags
+	 * @return The number of ids copied
+	 */
+	public int getObservedTagIds(int vocabularyId, int[] tagIds) {
+		int[] observedTags = observedTagIds[vocabularyId];
+		System.arraycopy(observedTags, 0, tagIds, 0, observedTags.length);
+		return observedTags.length;
+	}
+
+	/**
+	 * @param vocabularyId
+	 *            Id of a word w in the vocabulary
+	 * @return The id of the tag t with the highest C(w,t)
+	 */
+	public int getMostFrequentTagId(int vocabularyId) {
+		return mostFrequentTagIds[vocabularyId];
+	}
+
+	/**
+	 * @param word
+	 * @param tag
+	 * @return C(w,t) in the training set
+	 */
+	public int getWordTagCount(String word, String tag) {
+		int vocabularyId = getVocabularyId(word);
+		return vocabularyId == -1 ? 0 : wordTagCounts.getCount(vocabularyId, ALL_POS_TAGS.getId(tag));
+	}
+
 	/**
 	 * Get P(ti|ti-1) for a tag ti and tag ti-1
 	 * 
@@ -258,6 +524,203 @@ public abstract class Model implements Serializable {
 		return isTrained;
 	}
 
+	/**
+	 * @return true if the tagger should decode with P(ti|ti-2,ti-1)
+	 */
+	public boolean isSecondOrder() {
+		return isSecondOrder;
+	}
+
+	/**
+	 * Choose between P(ti|ti-1) and P(ti|ti-2,ti-1) for tagging. The choice
+	 * is written to model_file with the counts.
+	 * 
+	 * @param isSecondOrder
+	 *            true to tag with P(ti|ti-2,ti-1)
+	 */
+	public void setSecondOrder(boolean isSecondOrder) {
+		this.isSecondOrder = isSecondOrder;
+	}
+
+	/**
+	 * Get the precomputed log(P(ti|ti-1)) for all pairs of tags. The table is
+	 * computed here if it has not been computed for the current parameters,
+	 * e.g. when the model has just been read from model_file.
+	 * 
+	 * @return log(P(ti|ti-1)) at [id of ti-1][id of ti], MIN_VALUE where
+	 *         P(ti|ti-1) = 0
+	 */
+	public double[][] getLogTransitionTable() throws IllegalStateException {
+		if (!isTrained)
+			throw new IllegalStateException("Model is not trained!");
+		if (logTransitionTable == null)
+			compileLogTransitionTable();
+		return logTransitionTable;
+	}
+
+	/**
+	 * Get the precomputed log(P(ti|ti-2,ti-1)) for all triples of tags, the
+	 * trigram estimate interpolated with P(ti|ti-1) of the current parameters,
+	 * so that it is smoothed the same way as the model. Histories that were
+	 * never seen only use P(ti|ti-1). The table is computed here whenever the
+	 * log(P(ti|ti-1)) table has changed.
+	 * 
+	 * @return log(P(ti|ti-2,ti-1)) at [id of ti-2 * number of tags + id of
+	 *         ti-1][id of ti], MIN_VALUE where P(ti|ti-2,ti-1) = 0
+	 */
+	public double[][] getLogTrigramTable() throws IllegalStateException {
+		double[][] bigramTable = getLogTransitionTable();
+		if (logTrigramTable == null || trigramSourceTable != bigramTable) {
+			if (prevTwoTagsAndTagCount == null)
+				throw new IllegalStateException("Model has no trigram counts!");
+			int numTags = ALL_POS_TAGS.size();
+			double[][] table = new double[numTags * numTags][numTags];
+			for (int prevPrevTag = 0; prevPrevTag < numTags; prevPrevTag++) {
+				for (int prevTag = 0; prevTag < numTags; prevTag++) {
+					double[] row = table[prevPrevTag * numTags + prevTag];
+					Map<String, Integer> tagCounts = prevTwoTagsAndTagCount
+							.get(ALL_POS_TAGS.getTag(prevPrevTag) + " " + ALL_POS_TAGS.getTag(prevTag));
+					if (tagCounts == null) {
+						System.arraycopy(bigramTable[prevTag], 0, row, 0, numTags);
+						continue;
+					}
+					double historyCount = sum(tagCounts);
+					for (int tag = 0; tag < numTags; tag++) {
+						Integer count = tagCounts.get(ALL_POS_TAGS.getTag(tag));
+						double trigramProb = count == null ? 0.0 : count / historyCount;
+						double bigramProb = bigramTable[prevTag][tag] == Constants.MIN_VALUE ? 0.0
+								: Math.exp(bigramTable[prevTag][tag]);
+						row[tag] = toLogProb(trigramWeight * trigramProb + (1 - trigramWeight) * bigramProb);
+					}
+				}
+			}
+			logTrigramTable = table;
+			trigramSourceTable = bigramTable;
+		}
+		return logTrigramTable;
+	}
+
+	/**
+	 * Get, for each tag, the previous tags that can transit to it with the
+	 * current parameters.
+	 * 
+	 * @param minLogTransitionProb
+	 *            Transitions with a lower log(P(ti|ti-1)) are left out.
+	 *            MIN_VALUE only leaves out the transitions with P(ti|ti-1) = 0
+	 * @return the predecessor lists
+	 */
+	public SparseTransitions getSparseTransitions(double minLogTransitionProb) throws IllegalStateException {
+		double[][] table = getLogTransitionTable();
+		SparseTransitions transitions = sparseTransitions;
+		if (transitions == null || !transitions.isBuiltFrom(table, minLogTransitionProb)) {
+			transitions = new SparseTransitions(table, minLogTransitionProb);
+			sparseTransitions = transitions;
+		}
+		return transitions;
+	}
+
+	/**
+	 * Compute log(P(ti|ti-1)) for all pairs of tags with the current
+	 * parameters. Must be called by subclasses whenever the parameters used by
+	 * the transition probabilities change. Does nothing if the model is not
+	 * trained yet.
+	 */
+	protected void compileLogTransitionTable() {
+		if (!isTrained)
+			return;
+		int numTags = ALL_POS_TAGS.size();
+		double[][] table = new double[numTags][numTags];
+		for (int prevTag = 0; prevTag < numTags; prevTag++)
+			for (int tag = 0; tag < numTags; tag++)
+				table[prevTag][tag] = toLogProb(
+						getTagGivenPrevTag(ALL_POS_TAGS.getTag(prevTag), ALL_POS_TAGS.getTag(tag)));
+		logTransitionTable = table;
+	}
+
+	/**
+	 * Discard the log(P(ti|ti-1)) table so that it is recomputed on next use.
+	 */
+	protected void invalidateLogTransitionTable() {
+		logTransitionTable = null;
+	}
+
+	/**
+	 * Take an immutable snapshot of the statistics used for tagging with the
+	 * current parameters, which can be shared by several threads. The model
+	 * itself is left as it is and can still be tuned.
+	 * 
+	 * @return the compiled model
+	 */
+	public CompiledModel compile() throws IllegalStateException {
+		if (!isTrained)
+			throw new IllegalStateException("Model is not trained!");
+		int numTags = ALL_POS_TAGS.size();
+		int[] wordTagIds = ALL_POS_TAGS.getWordTagIds();
+
+		// Emissions and counts of the words in the vocabulary
+		int vocabularySize = wordTagCounts.size();
+		double[] logEmissions = new double[vocabularySize * numTags];
+		int[] wordCounts = new int[vocabularySize];
+		int[][] observedTagIdsCopy = new int[vocabularySize][];
+		int[][] observedTagCounts = new int[vocabularySize][];
+		for (int wordId = 0; wordId < vocabularySize; wordId++) {
+			fillLogEmissionColumn(vocabularyIndex.getWord(wordId), logEmissions, wordId * numTags);
+			wordCounts[wordId] = wordTagCounts.getWordCount(wordId);
+			observedTagIdsCopy[wordId] = observedTagIds[wordId].clone();
+			observedTagCounts[wordId] = new int[observedTagIds[wordId].length];
+			for (int i = 0; i < observedTagIds[wordId].length; i++)
+				observedTagCounts[wordId][i] = wordTagCounts.getCountAt(wordTagCounts.getRowStart(wordId) + i);
+		}
+
+		// Features of the unknown word model, computed as in
+		// emissionProbUnknownWordModel()
+		double[] capitalProbs = new double[numTags];
+		double[] tagProbs = new double[numTags];
+		Map<String, double[]> suffixProbs = new HashMap<String, double[]>();
+		Iterator<String> suffixIter = SUFFIXES.getIterator();
+		while (suffixIter.hasNext())
+			suffixProbs.put(suffixIter.next(), new double[numTags]);
+		for (int tagId : wordTagIds) {
+			String tag = ALL_POS_TAGS.getTag(tagId);
+			capitalProbs[tagId] = (tagAndContainsCapitalCount.get(tag).doubleValue() + 1)
+					/ (tagCount.get(tag).doubleValue() + 2);
+			tagProbs[tagId] = tagCount.get(tag).doubleValue() / totalTokensCount;
+			suffixIter = SUFFIXES.getIterator();
+			while (suffixIter.hasNext()) {
+				String suffix = suffixIter.next();
+				suffixProbs.get(suffix)[tagId] = tagAndSuffixCount.get(tag).containsKey(suffix)
+						? (tagAndSuffixCount.get(tag).get(suffix).doubleValue() + 1)
+								/ (tagCount.get(tag).doubleValue() + SUFFIXES.size())
+						: 1 / (tagCount.get(tag).doubleValue() + SUFFIXES.size());
+			}
+		}
+
+		double[][] logTrigramTable = isSecondOrder ? copy(getLogTrigramTable()) : null;
+		return new CompiledModel(isSecondOrder, vocabularyIndex, wordCounts,
+				observedTagIdsCopy, observedTagCounts, mostFrequentTagIds.clone(), logEmissions,
+				new UnknownWordModel(capitalProbs, suffixProbs, tagProbs), copy(getLogTransitionTable()),
+				logTrigramTable);
+	}
+
+	private static double[][] copy(double[][] table) {
+		double[][] tableCopy = new double[table.length][];
+		for (int i = 0; i < table.length; i++)
+			tableCopy[i] = table[i].clone();
+		return tableCopy;
+	}
+
+	/**
+	 * Convert a probability to log form. Log of 0 is represented by
+	 * MIN_VALUE. Smoothed probabilities that come out slightly below 0 through
+	 * rounding (e.g. alpha when D = 0) are treated as 0 instead of giving NaN.
+	 * 
+	 * @param prob
+	 * @return log(prob), or MIN_VALUE if prob <= 0
+	 */
+	public static double toLogProb(double prob) {
+		return prob > 0.0 ? Math.log(prob) : Constants.MIN_VALUE;
+	}
+
 	public int getNumTuningIterations() {
 		return (TUNING_SETTINGS.NUM_TRIALS + 1) * (TUNING_SETTINGS.NUM_TRIALS + 1);
 	}
@@ -266,10 +729,13 @@ public abstract class Model implements Serializable {
 	 * Compute smoothed P(w|t) when C(w,t) > 0
 	 * 
 	 * @param tag
-	 * @param word
+	 * @param vocabularyId
+	 *            Id of the word w in wordTagCounts
+	 * @param wordTagCount
+	 *            C(w,t)
 	 * @return the smoothed P(w|t)
 	 */
-	abstract protected double nonZeroEmissionProb(String tag, String word);
+	abstract protected double nonZeroEmissionProb(String tag, int vocabularyId, int wordTagCount);
 
 	/**
 	 * Compute smoothed P(ti|i-1) when C(ti-1,ti) > 0
@@ -284,10 +750,11 @@ public abstract class Model implements Serializable {
 	 * Compute smoothed P(w|t) when C(w,t) = 0
 	 * 
 	 * @param tag
-	 * @param word
+	 * @param vocabularyId
+	 *            Id of the word w in wordTagCounts
 	 * @return the smoothed P(w|t)
 	 */
-	abstract protected double zeroEmissionProb(String tag, String word);
+	abstract protected double zeroEmissionProb(String tag, int vocabularyId);
 
 	/**
 	 * Compute smoothed P(ti|i-1) when C(ti-1,ti) = 0
@@ -316,18 +783,32 @@ public abstract class Model implements Serializable {
 	 * @return the estimated emission probability, P(w|t)
 	 */
 	private double emissionProbUnknownWordModel(String tag, String word) {
+		return emissionProbUnknownWordModel(tag, containsCapital(word), SUFFIXES.getAllSuffixes(word));
+	}
+
+	/**
+	 * Estimates emission probability for an unknown word from its features.
+	 * 
+	 * @param tag
+	 *            The query POS tag
+	 * @param containsCapital
+	 *            Whether the unknown word has a capital letter
+	 * @param suffixes
+	 *            The suffixes of the unknown word
+	 * @return the estimated emission probability, P(w|t)
+	 */
+	private double emissionProbUnknownWordModel(String tag, boolean containsCapital, String[] suffixes) {
 
 		double emissionProb = 1.0;
 
 		// Include P(cap|tag) if word has capital letter
 		// Add 1 smoothing is used if C(cap, tag) = 0
-		if (containsCapital(word))
+		if (containsCapital)
 			emissionProb *= (tagAndContainsCapitalCount.get(tag).doubleValue() + 1)
 					/ (tagCount.get(tag).doubleValue() + 2);
 
 		// Include P(suffix|tag) for all the suffixes that word contains
 		// Add 1 smoothing is used if C(suf, tag) = 0
-		String[] suffixes = SUFFIXES.getAllSuffixes(word);
 		for (String suffix : suffixes) {
 			emissionProb *= (tagAndSuffixCount.get(tag).containsKey(suffix)
 					? (tagAndSuffixCount.get(tag).get(suffix).doubleValue() + 1)
@@ -34,13 +34,14 @@ public class ModelAddN extends Model {
 
 	public void setNTransitionProb(double n) {
 		nTransitionProb = n;
+		invalidateLogTransitionTable();
 	}
 
 	@Override
-	protected double nonZeroEmissionProb(String tag, String word) {
+	protected double nonZeroEmissionProb(String tag, int vocabularyId, int wordTagCount) {
 		// P(w|t) = [C(w,t) + n]/[C(t) + n*vocabulary size]
-		return (tagAndWordCount.get(tag).get(word).doubleValue() + nEmissionProb)
-				/ (tagCount.get(tag).doubleValue() + nEmissionProb * vocabulary.size());
+		return (wordTagCount + nEmissionProb)
+				/ (tagCount.get(tag).doubleValue() + nEmissionProb * vocabularyIndex.size());
 	}
 
 	@Override
@@ -51,9 +52,9 @@ public class ModelAddN extends Model {
 	}
 
 	@Override
-	protected double zeroEmissionProb(String tag, String word) {
+	protected double zeroEmissionProb(String tag, int vocabularyId) {
 		// P(w|t) = n/[C(t) + n*vocabulary size]
-		return nEmissionProb / (tagCount.get(tag).doubleValue() + nEmissionProb * vocabulary.size());
+		return nEmissionProb / (tagCount.get(tag).doubleValue() + nEmissionProb * vocabularyIndex.size());
 	}
 
 	@Override
@@ -77,11 +78,11 @@ public class ModelAddN extends Model {
 		if (nTransitionProb + nTransitionProbInterval > N_TRANSITION_PROB_RANGE[1]) {
 			nTransitionProb = N_TRANSITION_PROB_RANGE[0];
 			nEmissionProb += nEmissionProbInterval;
-			return true;
 		} else {
 			nTransitionProb += nTransitionProbInterval;
-			return true;
 		}
+		compileLogTransitionTable();
+		return true;
 	}
 
 	@Override
@@ -94,6 +95,7 @@ public class ModelAddN extends Model {
 	public void setParametersToBest() {
 		nEmissionProb = nEmissionProbBest;
 		nTransitionProb = nTransitionProbBest;
+		compileLogTransitionTable();
 	}
 
 	@Override
@@ -103,6 +105,7 @@ public class ModelAddN extends Model {
 		nTransitionProbBest = N_TRANSITION_PROB_RANGE[0];
 		nEmissionProb = N_EMISSION_PROB_RANGE[0];
 		nTransitionProb = N_TRANSITION_PROB_RANGE[0];
+		compileLogTransitionTable();
 	}
 
 	@Override
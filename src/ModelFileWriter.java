@@ -0,0 +1,210 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * This class writes the tables of a CompiledModel to a binary model_file,
+ * which MappedModel maps into memory. The layout is described in MappedModel.
+ *
+ * @author Shao Fei
+ *
+ */
+public class ModelFileWriter {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+	private static final Suffixes SUFFIXES = new Suffixes();
+
+	private FileChannel channel;
+	// Values are gathered here in little-endian and written when it is full
+	private ByteBuffer buffer;
+	private long position;
+
+	/**
+	 * Write a compiled model to a file.
+	 *
+	 * @param model
+	 *            The compiled model
+	 * @param fileName
+	 *            The model_file
+	 */
+	public static void write(CompiledModel model, String fileName) throws IOException {
+		FileOutputStream out = new FileOutputStream(fileName);
+		try {
+			new ModelFileWriter(out.getChannel()).write(model);
+		} finally {
+			out.close();
+		}
+	}
+
+	private ModelFileWriter(FileChannel channel) {
+		this.channel = channel;
+		buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		position = 0;
+	}
+
+	private void write(CompiledModel model) throws IOException {
+		int numTags = ALL_POS_TAGS.size();
+		int vocabularySize = model.getVocabularySize();
+		VocabularyIndex vocabularyIndex = model.getVocabularyIndex();
+		UnknownWordModel unknownWordModel = model.getUnknownWordModel();
+		int numPairs = 0;
+		for (int wordId = 0; wordId < vocabularySize; wordId++)
+			numPairs += model.getObservedTagIds(wordId).length;
+
+		// Header, with the offsets of the sections filled in at the end
+		putInt(MappedModel.MAGIC);
+		putInt(MappedModel.VERSION);
+		putInt(numTags);
+		putInt(model.isSecondOrder() ? 1 : 0);
+		putInt(vocabularySize);
+		putInt(vocabularyIndex.getChars().length);
+		putInt(vocabularyIndex.getDisplacements().length);
+		putInt(numPairs);
+		putLong(vocabularyIndex.getSeed());
+		putInt(SUFFIXES.size());
+		putInt(MappedModel.NUM_SECTIONS);
+		long[] offsets = new long[MappedModel.NUM_SECTIONS];
+		for (int section = 0; section < MappedModel.NUM_SECTIONS; section++)
+			putLong(0);
+
+		offsets[MappedModel.SECTION_TAGS] = startSection();
+		for (int tag = 0; tag < numTags; tag++)
+			putString(ALL_POS_TAGS.getTag(tag));
+		offsets[MappedModel.SECTION_SUFFIXES] = startSection();
+		Map<String, double[]> suffixProbs = unknownWordModel.getSuffixProbs();
+		Iterator<String> suffixIter = SUFFIXES.getIterator();
+		while (suffixIter.hasNext()) {
+			String suffix = suffixIter.next();
+			putString(suffix);
+			for (double prob : suffixProbs.get(suffix))
+				putDouble(prob);
+		}
+		offsets[MappedModel.SECTION_CAPITAL_PROBS] = startSection();
+		for (double prob : unknownWordModel.getCapitalProbs())
+			putDouble(prob);
+		offsets[MappedModel.SECTION_TAG_PROBS] = startSection();
+		for (double prob : unknownWordModel.getTagProbs())
+			putDouble(prob);
+
+		offsets[MappedModel.SECTION_TRANSITIONS] = startSection();
+		for (double[] row : model.getLogTransitionTable())
+			for (double logProb : row)
+				putDouble(logProb);
+		offsets[MappedModel.SECTION_TRIGRAMS] = startSection();
+		if (model.isSecondOrder())
+			for (double[] row : model.getLogTrigramTable())
+				for (double logProb : row)
+					putDouble(logProb);
+
+		offsets[MappedModel.SECTION_CHARS] = startSection();
+		for (char c : vocabularyIndex.getChars())
+			putChar(c);
+		offsets[MappedModel.SECTION_WORD_STARTS] = startSection();
+		for (int start : vocabularyIndex.getWordStarts())
+			putInt(start);
+		offsets[MappedModel.SECTION_DISPLACEMENTS] = startSection();
+		for (int displacement : vocabularyIndex.getDisplacements())
+			putInt(displacement);
+		offsets[MappedModel.SECTION_SLOTS] = startSection();
+		for (long slot : vocabularyIndex.getSlots())
+			putLong(slot);
+
+		offsets[MappedModel.SECTION_WORD_COUNTS] = startSection();
+		for (int wordId = 0; wordId < vocabularySize; wordId++)
+			putInt(model.getWordCount(wordId));
+		offsets[MappedModel.SECTION_MOST_FREQUENT_TAGS] = startSection();
+		for (int wordId = 0; wordId < vocabularySize; wordId++)
+			putInt(model.getMostFrequentTagId(wordId));
+		offsets[MappedModel.SECTION_ROW_STARTS] = startSection();
+		int rowStart = 0;
+		for (int wordId = 0; wordId < vocabularySize; wordId++) {
+			putInt(rowStart);
+			rowStart += model.getObservedTagIds(wordId).length;
+		}
+		putInt(rowStart);
+		offsets[MappedModel.SECTION_ROW_TAG_IDS] = startSection();
+		for (int wordId = 0; wordId < vocabularySize; wordId++)
+			for (int tagId : model.getObservedTagIds(wordId))
+				putByte((byte) tagId);
+		offsets[MappedModel.SECTION_ROW_COUNTS] = startSection();
+		for (int wordId = 0; wordId < vocabularySize; wordId++)
+			for (int count : model.getObservedTagCounts(wordId))
+				putInt(count);
+
+		offsets[MappedModel.SECTION_LOG_EMISSIONS] = startSection();
+		for (double logProb : model.getLogEmissions())
+			putDouble(logProb);
+		flush();
+
+		ByteBuffer offsetBuffer = ByteBuffer.allocate(8 * offsets.length).order(ByteOrder.LITTLE_ENDIAN);
+		for (long offset : offsets)
+			offsetBuffer.putLong(offset);
+		offsetBuffer.flip();
+		while (offsetBuffer.hasRemaining())
+			channel.write(offsetBuffer, MappedModel.HEADER_SIZE + offsetBuffer.position());
+	}
+
+	/**
+	 * Pad to a multiple of 8 bytes.
+	 *
+	 * @return The offset of the section
+	 */
+	private long startSection() throws IOException {
+		while (position % 8 != 0)
+			putByte((byte) 0);
+		return position;
+	}
+
+	private void ensureRemaining(int size) throws IOException {
+		if (buffer.remaining() < size)
+			flush();
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private void putByte(byte value) throws IOException {
+		ensureRemaining(1);
+		buffer.put(value);
+		position += 1;
+	}
+
+	private void putChar(char value) throws IOException {
+		ensureRemaining(2);
+		buffer.putChar(value);
+		position += 2;
+	}
+
+	private void putInt(int value) throws IOException {
+		ensureRemaining(4);
+		buffer.putInt(value);
+		position += 4;
+	}
+
+	private void putLong(long value) throws IOException {
+		ensureRemaining(8);
+		buffer.putLong(value);
+		position += 8;
+	}
+
+	private void putDouble(double value) throws IOException {
+		ensureRemaining(8);
+		buffer.putDouble(value);
+		position += 8;
+	}
+
+	private void putString(String value) throws IOException {
+		putInt(value.length());
+		for (int i = 0; i < value.length(); i++)
+			putChar(value.charAt(i));
+	}
+
+}
@@ -1,7 +1,6 @@
 
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -27,12 +26,8 @@ public class ModelFinal extends Model {
 	// alpha is used to obtain P(w|t) when C(w,t) = 0
 	// 1 for emission probability and 1 for transition probability
 	transient private Map<String, Double> alphaEmissionProb;
-	// |{t: C(t, w)>0}| for each w. I.e. Number of distinct pairs (t, w)
-	// for given a w
-	transient private Map<String, Integer> distinctPairsEmissionProb;
-	// Sum(|{t: C(t, w)>0}|) over all w. I.e. Total number of distinct
-	// pairs (t, w) in corpus
-	transient private int totalDistinctPairsEmissionProb;
+	// |{t: C(t, w)>0}| for each w, and their sum over all w, are the row
+	// lengths and the number of entries of wordTagCounts
 	private boolean isEmissionProbInitialised = false;
 
 	// Lambda is used to obtain P(ti|ti-1)
@@ -67,6 +62,7 @@ public class ModelFinal extends Model {
 	public void setLambda1TransitionProb(double value) {
 		lambda1TransitionProb = value;
 		lambda2TransitionProb = 1 - lambda1TransitionProb;
+		invalidateLogTransitionTable();
 	}
 
 	@Override
@@ -85,11 +81,11 @@ public class ModelFinal extends Model {
 		if (lambda1TransitionProb - lambda1TransitionProbInterval < LAMDA_1_TRANSITION_PROB_RANGE[0]) {
 			setLambda1TransitionProb(LAMDA_1_TRANSITION_PROB_RANGE[1]);
 			setDEmissionProb(DEmissionProb + DEmissionProbInterval);
-			return true;
 		} else {
 			setLambda1TransitionProb(lambda1TransitionProb - lambda1TransitionProbInterval);
-			return true;
 		}
+		compileLogTransitionTable();
+		return true;
 	}
 
 	@Override
@@ -102,6 +98,7 @@ public class ModelFinal extends Model {
 	public void setParametersToBest() {
 		setDEmissionProb(DEmissionProbBest);
 		setLambda1TransitionProb(lambda1TransitionProbBest);
+		compileLogTransitionTable();
 	}
 
 	@Override
@@ -111,6 +108,7 @@ public class ModelFinal extends Model {
 		lambda1TransitionProbBest = LAMDA_1_TRANSITION_PROB_RANGE[1];
 		lambda1TransitionProb = LAMDA_1_TRANSITION_PROB_RANGE[1];
 		lambda2TransitionProb = 1 - lambda1TransitionProb;
+		compileLogTransitionTable();
 	}
 
 	@Override
@@ -119,8 +117,17 @@ public class ModelFinal extends Model {
 	}
 
 	@Override
-	protected double nonZeroEmissionProb(String tag, String word) {
-		return (tagAndWordCount.get(tag).get(word).doubleValue() - DEmissionProb) / tagCount.get(tag);
+	protected void initDerivedTables() {
+		// The alphas are not written to model_file, so a model read from it
+		// computes them here
+		if (isTrained && (!isEmissionProbInitialised || alphaEmissionProb == null))
+			initParamsEmissionProb();
+		super.initDerivedTables();
+	}
+
+	@Override
+	protected double nonZeroEmissionProb(String tag, int vocabularyId, int wordTagCount) {
+		return (wordTagCount - DEmissionProb) / tagCount.get(tag);
 	}
 
 	@Override
@@ -133,11 +140,11 @@ public class ModelFinal extends Model {
 	}
 
 	@Override
-	protected double zeroEmissionProb(String tag, String word) {
+	protected double zeroEmissionProb(String tag, int vocabularyId) {
 		if (!isEmissionProbInitialised)
 			initParamsEmissionProb();
-		return alphaEmissionProb.get(tag) * distinctPairsEmissionProb.get(word).doubleValue()
-				/ totalDistinctPairsEmissionProb;
+		return alphaEmissionProb.get(tag) * (double) wordTagCounts.getNumTags(vocabularyId)
+				/ wordTagCounts.getNumPairs();
 	}
 
 	@Override
@@ -149,93 +156,29 @@ public class ModelFinal extends Model {
 
 	private void initParamsEmissionProb() {
 		alphaEmissionProb = new HashMap<String, Double>();
-		distinctPairsEmissionProb = new HashMap<String, Integer>();
-		totalDistinctPairsEmissionProb = 0;
-
-		// For each word find the distinct number of pairs of (word, tag)
-		Iterator<String> tagIter = ALL_POS_TAGS.getIterator();
-		while (tagIter.hasNext()) {
-			String tag = tagIter.next();
-			// <s> and </s> is not associated with any word
-			if (tag.equals("<s>") || tag.equals("</s>"))
-				continue;
-			Iterator<String> wordIter = tagAndWordCount.get(tag).keySet().iterator();
-			while (wordIter.hasNext()) {
-				String word = wordIter.next();
-				if (!distinctPairsEmissionProb.containsKey(word))
-					distinctPairsEmissionProb.put(word, 0);
-				distinctPairsEmissionProb.put(word, distinctPairsEmissionProb.get(word) + 1);
-				// Increment the total number of distinct pairs of (word, tag)
-				// at the same time
-				totalDistinctPairsEmissionProb++;
-			}
-		}
 
-		// Find alpha
-		tagIter = ALL_POS_TAGS.getIterator();
-		while (tagIter.hasNext()) {
-			String tag = tagIter.next();
-			// <s> and </s> is not associated with any word
-			if (tag.equals("<s>") || tag.equals("</s>"))
-				continue;
-			double alpha = alphaNumerator(tagAndWordCount, tagCount, tag, DEmissionProb)
-					/ alphaDenominator(tagAndWordCount, distinctPairsEmissionProb, totalDistinctPairsEmissionProb, tag);
+		// alpha = 1 - sum[(C(t, w) - D)/C(t)] over 1 - sum[|{t: C(t, w)>0}| /
+		// sum(|{t: C(t, w)>0}|)], both over all w where C(t, w) > 0. The words
+		// of a tag are added up in the order they were counted in, as when
+		// C(t, w) was a map per tag, so that alpha rounds the same. The number
+		// of distinct pairs (t, w) of a word is the length of its row
+		int totalDistinctPairs = wordTagCounts.getNumPairs();
+		for (int tagId : ALL_POS_TAGS.getWordTagIds()) {
+			String tag = ALL_POS_TAGS.getTag(tagId);
+			double tagTotal = tagCount.get(tag).doubleValue();
+			double sumOfWordGivenTag = 0;
+			double sumOfDistinctPairsOverTotalDistinctPairs = 0;
+			for (int i = wordTagCounts.getTagWordStart(tagId); i < wordTagCounts.getTagWordEnd(tagId); i++) {
+				int wordId = wordTagCounts.getTagWordId(i);
+				sumOfWordGivenTag += (wordTagCounts.getCount(wordId, tagId) - DEmissionProb) / tagTotal;
+				sumOfDistinctPairsOverTotalDistinctPairs += (double) wordTagCounts.getNumTags(wordId)
+						/ totalDistinctPairs;
+			}
+			double alpha = (1.0 - sumOfWordGivenTag) / (1.0 - sumOfDistinctPairsOverTotalDistinctPairs);
 			alphaEmissionProb.put(tag, alpha);
 		}
 
 		isEmissionProbInitialised = true;
 	}
 
-	/**
-	 * Compute numerator of alpha = 1 - {sum[(C(t, w) - D)/C(t)] over all t
-	 * where C(t, w) > 0 }
-	 * 
-	 * @param wMinus1AndW0Count
-	 *            C(t, w)
-	 * @param wMinus1Count
-	 *            C(t)
-	 * @param wMinus1
-	 *            (t)
-	 * @param D
-	 * @return numerator of alpha
-	 */
-	private double alphaNumerator(Map<String, Map<String, Integer>> wMinus1AndW0Count,
-			Map<String, Integer> wMinus1Count, String wMinus1, double D) {
-		// {sum[(C(w-1, w0) - D)/C(w-1)] over all w-1 where C(w-1, w0) > 0 }
-		double sumOfw0GivenWMinus1 = 0;
-		Iterator<String> w0Iter = wMinus1AndW0Count.get(wMinus1).keySet().iterator();
-		while (w0Iter.hasNext()) {
-			String w0 = w0Iter.next();
-			sumOfw0GivenWMinus1 += (wMinus1AndW0Count.get(wMinus1).get(w0).doubleValue() - D)
-					/ wMinus1Count.get(wMinus1).doubleValue();
-		}
-		return 1.0 - sumOfw0GivenWMinus1;
-	}
-
-	/**
-	 * Compute denominator of alpha = 1 - {sum[|{t: C(t, w)>0}| / sum(|{t: C(t,
-	 * w)>0}|)] over all t where C(t, w) > 0 }
-	 * 
-	 * @param wMinus1AndW0Count
-	 *            C(t, w)
-	 * @param distinctPairs
-	 * @param totalDistinctPairs
-	 * @param wMinus1
-	 *            (t)
-	 * @return denominator of alpha
-	 */
-	private double alphaDenominator(Map<String, Map<String, Integer>> wMinus1AndW0Count,
-			Map<String, Integer> distinctPairs, int totalDistinctPairs, String wMinus1) {
-		// {sum[|{w-1: C(w-1, w)>0}| / sum(|{w-1: C(w-1, w)>0}|)] over all w-1
-		// where C(w-1, w0) > 0 }
-		double sumOfDistinctPairsOverTotalDistinctPairs = 0;
-		Iterator<String> w0Iter = wMinus1AndW0Count.get(wMinus1).keySet().iterator();
-		while (w0Iter.hasNext()) {
-			String w0 = w0Iter.next();
-			sumOfDistinctPairsOverTotalDistinctPairs += distinctPairs.get(w0).doubleValue() / totalDistinctPairs;
-		}
-
-		return 1.0 - sumOfDistinctPairsOverTotalDistinctPairs;
-	}
-
 }
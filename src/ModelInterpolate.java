@@ -53,14 +53,15 @@ public class ModelInterpolate extends Model {
 	public void setLambda1TransitionProb(double value) {
 		lambda1TransitionProb = value;
 		lambda2TransitionProb = 1 - lambda1TransitionProb;
+		invalidateLogTransitionTable();
 	}
 
 	@Override
-	protected double nonZeroEmissionProb(String tag, String word) {
+	protected double nonZeroEmissionProb(String tag, int vocabularyId, int wordTagCount) {
 		assert lambda1EmissionProb + lambda2EmissionProb == 1;
 		// P(w|t) = lambda1 * P(w|t) + lambda2 * P(w)
-		return lambda1EmissionProb * tagAndWordCount.get(tag).get(word).doubleValue() / tagCount.get(tag).doubleValue()
-				+ lambda2EmissionProb * wordCount.get(word).doubleValue() / totalTokensCount;
+		return lambda1EmissionProb * wordTagCount / tagCount.get(tag).doubleValue()
+				+ lambda2EmissionProb * wordTagCounts.getWordCount(vocabularyId) / totalTokensCount;
 	}
 
 	@Override
@@ -73,10 +74,10 @@ public class ModelInterpolate extends Model {
 	}
 
 	@Override
-	protected double zeroEmissionProb(String tag, String word) {
+	protected double zeroEmissionProb(String tag, int vocabularyId) {
 		assert lambda1EmissionProb + lambda2EmissionProb == 1;
 		// P(w|t) = lambda1 * 0 + lambda2 * P(w) = lambda2 * P(w)
-		return lambda2EmissionProb * wordCount.get(word).doubleValue() / totalTokensCount;
+		return lambda2EmissionProb * wordTagCounts.getWordCount(vocabularyId) / totalTokensCount;
 	}
 
 	@Override
@@ -102,11 +103,11 @@ public class ModelInterpolate extends Model {
 		if (lambda1TransitionProb - lambda1TransitionProbInterval < LAMBDA_1_TRANSITION_PROB_RANGE[0]) {
 			setLambda1TransitionProb(LAMBDA_1_TRANSITION_PROB_RANGE[1]);
 			setLambda1EmissionProb(lambda1EmissionProb - lambda1EmissionProbInterval);
-			return true;
 		} else {
 			setLambda1TransitionProb(lambda1TransitionProb - lambda1TransitionProbInterval);
-			return true;
 		}
+		compileLogTransitionTable();
+		return true;
 	}
 
 	@Override
@@ -119,6 +120,7 @@ public class ModelInterpolate extends Model {
 	public void setParametersToBest() {
 		setLambda1EmissionProb(lambda1EmissionProbBest);
 		setLambda1TransitionProb(lambda1TransitionProbBest);
+		compileLogTransitionTable();
 	}
 
 	@Override
@@ -131,6 +133,7 @@ public class ModelInterpolate extends Model {
 		lambda2EmissionProb = 1 - lambda1EmissionProb;
 		lambda1TransitionProb = LAMBDA_1_TRANSITION_PROB_RANGE[1];
 		lambda2TransitionProb = 1 - lambda1TransitionProb;
+		compileLogTransitionTable();
 	}
 
 	@Override
@@ -33,12 +33,11 @@ public class ModelKneserNey extends Model {
 	// |{w-1: C(w-1, w)>0}| for each w. I.e. Number of distinct pairs (w-1, w)
 	// for given a w
 	// 1 for emission probability and 1 for transition probability
-	transient private Map<String, Integer> distinctPairsEmissionProb;
+	// The emission ones are the row lengths of wordTagCounts
 	transient private Map<String, Integer> distinctPairsTransitionProb;
 	// Sum(|{w-1: C(w-1, w)>0}|) over all w. I.e. Total number of distinct
 	// pairs (w-1, w) in corpus
 	// 1 for emission probability and 1 for transition probability
-	transient private int totalDistinctPairsEmissionProb;
 	transient private int totalDistinctPairsTransitionProb;
 	
 	private boolean isEmissionProbInitialised = false, isTransitionProbInitialised = false;
@@ -68,11 +67,23 @@ public class ModelKneserNey extends Model {
 	public void setDTransitionProb(double D) {
 		this.DTransitionProb = D;
 		isTransitionProbInitialised = false;
+		invalidateLogTransitionTable();
 	}
 
 	@Override
-	protected double nonZeroEmissionProb(String tag, String word) {
-		return (tagAndWordCount.get(tag).get(word).doubleValue() - DEmissionProb) / tagCount.get(tag);
+	protected void initDerivedTables() {
+		// The alphas are not written to model_file, so a model read from it
+		// computes them here
+		if (isTrained && (!isEmissionProbInitialised || alphaEmissionProb == null))
+			initParamsEmissionProb();
+		if (isTrained && (!isTransitionProbInitialised || alphaTransitionProb == null))
+			initParamsTransitionProb();
+		super.initDerivedTables();
+	}
+
+	@Override
+	protected double nonZeroEmissionProb(String tag, int vocabularyId, int wordTagCount) {
+		return (wordTagCount - DEmissionProb) / tagCount.get(tag);
 	}
 
 	@Override
@@ -82,11 +93,11 @@ public class ModelKneserNey extends Model {
 	}
 
 	@Override
-	protected double zeroEmissionProb(String tag, String word) {
+	protected double zeroEmissionProb(String tag, int vocabularyId) {
 		if (!isEmissionProbInitialised)
 			initParamsEmissionProb();
-		return alphaEmissionProb.get(tag) * distinctPairsEmissionProb.get(word).doubleValue()
-				/ totalDistinctPairsEmissionProb;
+		return alphaEmissionProb.get(tag) * (double) wordTagCounts.getNumTags(vocabularyId)
+				/ wordTagCounts.getNumPairs();
 	}
 
 	@Override
@@ -99,37 +110,25 @@ public class ModelKneserNey extends Model {
 
 	private void initParamsEmissionProb() {
 		alphaEmissionProb = new HashMap<String, Double>();
-		distinctPairsEmissionProb = new HashMap<String, Integer>();
-		totalDistinctPairsEmissionProb = 0;
 
-		// For each word find the distinct number of pairs of (word, tag)
-		Iterator<String> tagIter = ALL_POS_TAGS.getIterator();
-		while (tagIter.hasNext()) {
-			String tag = tagIter.next();
-			// <s> and </s> is not associated with any word
-			if (tag.equals("<s>") || tag.equals("</s>"))
-				continue;
-			Iterator<String> wordIter = tagAndWordCount.get(tag).keySet().iterator();
-			while (wordIter.hasNext()) {
-				String word = wordIter.next();
-				if (!distinctPairsEmissionProb.containsKey(word))
-					distinctPairsEmissionProb.put(word, 0);
-				distinctPairsEmissionProb.put(word, distinctPairsEmissionProb.get(word) + 1);
-				// Increment the total number of distinct pairs of (word, tag)
-				// at the same time
-				totalDistinctPairsEmissionProb++;
+		// alpha = 1 - sum[(C(t, w) - D)/C(t)] over 1 - sum[|{t: C(t, w)>0}| /
+		// sum(|{t: C(t, w)>0}|)], both over all w where C(t, w) > 0. The words
+		// of a tag are added up in the order they were counted in, as when
+		// C(t, w) was a map per tag, so that alpha rounds the same. The number
+		// of distinct pairs (t, w) of a word is the length of its row
+		int totalDistinctPairs = wordTagCounts.getNumPairs();
+		for (int tagId : ALL_POS_TAGS.getWordTagIds()) {
+			String tag = ALL_POS_TAGS.getTag(tagId);
+			double tagTotal = tagCount.get(tag).doubleValue();
+			double sumOfWordGivenTag = 0;
+			double sumOfDistinctPairsOverTotalDistinctPairs = 0;
+			for (int i = wordTagCounts.getTagWordStart(tagId); i < wordTagCounts.getTagWordEnd(tagId); i++) {
+				int wordId = wordTagCounts.getTagWordId(i);
+				sumOfWordGivenTag += (wordTagCounts.getCount(wordId, tagId) - DEmissionProb) / tagTotal;
+				sumOfDistinctPairsOverTotalDistinctPairs += (double) wordTagCounts.getNumTags(wordId)
+						/ totalDistinctPairs;
 			}
-		}
-
-		// Find alpha
-		tagIter = ALL_POS_TAGS.getIterator();
-		while (tagIter.hasNext()) {
-			String tag = tagIter.next();
-			// <s> and </s> is not associated with any word
-			if (tag.equals("<s>") || tag.equals("</s>"))
-				continue;
-			double alpha = alphaNumerator(tagAndWordCount, tagCount, tag, DEmissionProb)
-					/ alphaDenominator(tagAndWordCount, distinctPairsEmissionProb, totalDistinctPairsEmissionProb, tag);
+			double alpha = (1.0 - sumOfWordGivenTag) / (1.0 - sumOfDistinctPairsOverTotalDistinctPairs);
 			// System.out.println("alpha emission prob for " + tag + ": " +
 			// alpha);
 			alphaEmissionProb.put(tag, alpha);
@@ -249,11 +248,11 @@ public class ModelKneserNey extends Model {
 		if (DTransitionProb + DTransitionProbInterval > D_TRANSITION_PROB_RANGE[1]) {
 			setDTransitionProb(D_TRANSITION_PROB_RANGE[0]);
 			setDEmissionProb(DEmissionProb + DEmissionProbInterval);
-			return true;
 		} else {
 			setDTransitionProb(DTransitionProb + DTransitionProbInterval);
-			return true;
 		}
+		compileLogTransitionTable();
+		return true;
 	}
 
 	@Override
@@ -266,6 +265,7 @@ public class ModelKneserNey extends Model {
 	public void setParametersToBest() {
 		setDEmissionProb(DEmissionProbBest);
 		setDTransitionProb(DTransitionProbBest);
+		compileLogTransitionTable();
 	}
 
 	@Override
@@ -274,6 +274,7 @@ public class ModelKneserNey extends Model {
 		DTransitionProbBest = D_TRANSITION_PROB_RANGE[0];
 		setDEmissionProb(D_EMISSION_PROB_RANGE[0]);
 		setDTransitionProb(D_TRANSITION_PROB_RANGE[0]);
+		compileLogTransitionTable();
 	}
 
 	@Override
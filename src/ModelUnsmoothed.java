@@ -17,7 +17,7 @@ public class ModelUnsmoothed extends Model {
 	}
 
 	@Override
-	protected double zeroEmissionProb(String tag, String word) {
+	protected double zeroEmissionProb(String tag, int vocabularyId) {
 		// P(w|t) = 0
 		return 0;
 	}
@@ -29,9 +29,9 @@ public class ModelUnsmoothed extends Model {
 	}
 
 	@Override
-	protected double nonZeroEmissionProb(String tag, String word) {
+	protected double nonZeroEmissionProb(String tag, int vocabularyId, int wordTagCount) {
 		// P(w|t) = C(w,t)/C(t)
-		return tagAndWordCount.get(tag).get(word).doubleValue() / tagCount.get(tag).doubleValue();
+		return (double) wordTagCount / tagCount.get(tag).doubleValue();
 	}
 
 	@Override
@@ -55,13 +55,13 @@ public class ModelUnsmoothed extends Model {
 	@Override
 	public void setParametersToBest() {
 		// No parameters to vary
-		return;
+		compileLogTransitionTable();
 	}
 
 	@Override
 	public void setParametersToDefault() {
 		// No parameters to set
-		return;
+		compileLogTransitionTable();
 	}
 
 	@Override
@@ -31,13 +31,13 @@ public class ModelWittenBell extends Model {
 	@Override
 	public void setParametersToBest() {
 		// No parameters to vary
-		return;
+		compileLogTransitionTable();
 	}
 
 	@Override
 	public void setParametersToDefault() {
 		// No parameters to set
-		return;
+		compileLogTransitionTable();
 	}
 
 	@Override
@@ -46,10 +46,10 @@ public class ModelWittenBell extends Model {
 	}
 
 	@Override
-	protected double nonZeroEmissionProb(String tag, String word) {
+	protected double nonZeroEmissionProb(String tag, int vocabularyId, int wordTagCount) {
 		// Total number of seen word/tag types
-		double t = (double) tagAndWordCount.get(tag).size();
-		return tagAndWordCount.get(tag).get(word).doubleValue() / (tagCount.get(tag).doubleValue() + t);
+		double t = (double) wordTagCounts.getNumWords(ALL_POS_TAGS.getId(tag));
+		return wordTagCount / (tagCount.get(tag).doubleValue() + t);
 	}
 
 	@Override
@@ -60,11 +60,11 @@ public class ModelWittenBell extends Model {
 	}
 
 	@Override
-	protected double zeroEmissionProb(String tag, String word) {
+	protected double zeroEmissionProb(String tag, int vocabularyId) {
 		// Total number of seen word/tag types
-		double t = (double) tagAndWordCount.get(tag).size();
+		double t = (double) wordTagCounts.getNumWords(ALL_POS_TAGS.getId(tag));
 		// Total number of unseen word/tag types
-		double z = (double) (vocabulary.size() - t);
+		double z = (double) (vocabularyIndex.size() - t);
 		return t / (z * (tagCount.get(tag).doubleValue() + t));
 	}
 
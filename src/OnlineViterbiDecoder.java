@@ -0,0 +1,324 @@
+
+/**
+ * This class runs the Viterbi algorithm on an unbounded stream of words and
+ * gives out the tags as soon as they are known, instead of waiting for the
+ * end of the line.
+ *
+ * After each word, the back pointers of the states that are still alive are
+ * followed back through the pending words. Once all of them go through the
+ * same state, the tags up to that state cannot change any more and are given
+ * to the TagListener. Without a maximum lookahead this gives the same tags as
+ * ViterbiDecoder on the whole stream, as if it were one line.
+ *
+ * With a maximum lookahead, when more words than that are pending, the oldest
+ * pending word is given the tag on the path of the best current state, and
+ * the states whose path does not go through that tag are dropped. This bounds
+ * the memory and the delay before a tag is given out, but the tags may differ
+ * from those of ViterbiDecoder.
+ *
+ * @author Shao Fei
+ *
+ */
+public class OnlineViterbiDecoder {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+	// The statistics of a column are shifted back to 0 when the best one goes
+	// below this, so that they do not lose precision on long streams
+	private static final double RENORMALIZE_BELOW = -1e4;
+
+	private TrainedStatistics trainedStatistics;
+	private int maxLookahead;
+	private TagListener listener;
+	private int numTags;
+	private int[] stateIds;
+	private int startTagId;
+	private int endTagId;
+	private int defaultTagId;
+	private int quoteTagId;
+
+	// Number of words of the stream given so far, up to 2 as only the first
+	// two words are handled differently
+	private int streamIndex;
+	// log(viterbi(s,t)) of the last word given, at the id of s
+	private double[] scores;
+	private double[] nextScores;
+	private double[] logEmissions;
+	private double[] logEmissionsAfterQuote;
+
+	// Words whose tag is not known yet and their back pointers, oldest first,
+	// in a ring of capacity pendingTokens.length starting at pendingStart
+	private String[] pendingTokens;
+	private byte[][] pendingBackPointers;
+	private int pendingStart;
+	private int numPending;
+
+	// Scratch space to follow the back pointers
+	private boolean[] isInSet;
+	private int[] stateSet;
+	private int[] ancestors;
+	private int[] path;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 * @param maxLookahead
+	 *            Maximum number of words whose tag is not known yet. 0 waits
+	 *            until the paths agree or the stream ends.
+	 * @param listener
+	 *            Receives the tags
+	 */
+	public OnlineViterbiDecoder(TrainedStatistics trainedStatistics, int maxLookahead, TagListener listener) {
+		this.trainedStatistics = trainedStatistics;
+		this.maxLookahead = maxLookahead;
+		this.listener = listener;
+		numTags = ALL_POS_TAGS.size();
+		stateIds = ALL_POS_TAGS.getWordTagIds();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		defaultTagId = ALL_POS_TAGS.getId("NN");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+
+		scores = new double[numTags];
+		nextScores = new double[numTags];
+		logEmissions = new double[numTags];
+		logEmissionsAfterQuote = new double[numTags];
+		for (int tag = 0; tag < numTags; tag++) {
+			scores[tag] = Constants.MIN_VALUE;
+			nextScores[tag] = Constants.MIN_VALUE;
+		}
+		pendingTokens = new String[16];
+		pendingBackPointers = new byte[16][];
+		isInSet = new boolean[numTags];
+		stateSet = new int[numTags];
+		ancestors = new int[numTags];
+		path = new int[16];
+		streamIndex = 0;
+		pendingStart = 0;
+		numPending = 0;
+	}
+
+	public int getNumPendingTokens() {
+		return numPending;
+	}
+
+	/**
+	 * Add the next word of the stream. The listener is called for the words
+	 * whose tag becomes known.
+	 *
+	 * @param token
+	 *            The next word
+	 */
+	public void addToken(String token) throws IllegalStateException {
+		SparseTransitions transitions = trainedStatistics.getSparseTransitions(Constants.MIN_VALUE);
+		double[][] logTransition = transitions.getLogTransitionTable();
+		byte[] backPointers = addPending(token);
+		trainedStatistics.fillLogEmissionColumn(PreparedLine.getWordForEmission(token, streamIndex), logEmissions,
+				0);
+
+		if (streamIndex == 0) {
+			// Initialisation step for the first word
+			for (int tag : stateIds) {
+				scores[tag] = logTransition[startTagId][tag] + logEmissions[tag];
+				backPointers[tag] = (byte) startTagId;
+			}
+		} else {
+			// The second word has a different emission when the previous tag
+			// is ``
+			double[] emissionsAfterQuote = logEmissions;
+			String wordAfterQuote = streamIndex == 1 ? PreparedLine.getWordAfterQuote(token) : null;
+			if (wordAfterQuote != null) {
+				trainedStatistics.fillLogEmissionColumn(wordAfterQuote, logEmissionsAfterQuote, 0);
+				emissionsAfterQuote = logEmissionsAfterQuote;
+			}
+
+			for (int tag : stateIds) {
+				double logEmission = logEmissions[tag];
+				double logEmissionAfterQuote = emissionsAfterQuote[tag];
+				double bestStateStat = Constants.MIN_VALUE;
+				int bestPrevState = defaultTagId;
+				if (logEmission != Constants.MIN_VALUE || logEmissionAfterQuote != Constants.MIN_VALUE) {
+					for (int prevTag : transitions.getPredecessorTagIds(tag)) {
+						double candidateStateStat = scores[prevTag] + logTransition[prevTag][tag]
+								+ (prevTag == quoteTagId ? logEmissionAfterQuote : logEmission);
+						if (candidateStateStat > bestStateStat) {
+							bestStateStat = candidateStateStat;
+							bestPrevState = prevTag;
+						}
+					}
+				}
+				nextScores[tag] = bestStateStat;
+				backPointers[tag] = (byte) bestPrevState;
+			}
+			double[] swap = scores;
+			scores = nextScores;
+			nextScores = swap;
+		}
+		if (streamIndex < 2)
+			streamIndex++;
+
+		renormalize();
+		commitConvergedTags();
+		if (maxLookahead > 0 && numPending > maxLookahead)
+			forceCommitOldestTag();
+	}
+
+	/**
+	 * End the stream. The listener is called for all the words whose tag is
+	 * not known yet, and the next word starts a new stream.
+	 */
+	public void endOfStream() throws IllegalStateException {
+		if (numPending > 0) {
+			// Termination step with the transitions to </s>
+			double[][] logTransition = trainedStatistics.getSparseTransitions(Constants.MIN_VALUE)
+					.getLogTransitionTable();
+			double bestLastStateStat = Constants.MIN_VALUE;
+			int bestLastTag = defaultTagId;
+			for (int prevTag : stateIds) {
+				double candidateStateStat = scores[prevTag] + logTransition[prevTag][endTagId];
+				if (candidateStateStat > bestLastStateStat) {
+					bestLastStateStat = candidateStateStat;
+					bestLastTag = prevTag;
+				}
+			}
+			commit(numPending, bestLastTag);
+		}
+		for (int tag = 0; tag < numTags; tag++)
+			scores[tag] = Constants.MIN_VALUE;
+		streamIndex = 0;
+	}
+
+	/**
+	 * Follow the back pointers of the live states of the last word until they
+	 * all go through one state, and commit the tags up to that state.
+	 */
+	private void commitConvergedTags() {
+		int setSize = 0;
+		for (int tag : stateIds)
+			if (scores[tag] > Constants.MIN_VALUE)
+				stateSet[setSize++] = tag;
+		// With no live state, every later state is MIN_VALUE as well and the
+		// best path goes through the default tag
+		if (setSize == 0)
+			stateSet[setSize++] = defaultTagId;
+		if (setSize == 1) {
+			commit(numPending, stateSet[0]);
+			return;
+		}
+
+		for (int k = numPending - 1; k > 0; k--) {
+			byte[] backPointers = getPendingBackPointers(k);
+			int prevSetSize = 0;
+			for (int i = 0; i < setSize; i++) {
+				int prevTag = backPointers[stateSet[i]];
+				if (!isInSet[prevTag]) {
+					isInSet[prevTag] = true;
+					stateSet[prevSetSize++] = prevTag;
+				}
+			}
+			for (int i = 0; i < prevSetSize; i++)
+				isInSet[stateSet[i]] = false;
+			setSize = prevSetSize;
+			if (setSize == 1) {
+				commit(k, stateSet[0]);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Commit the oldest pending word to its tag on the path of the best state
+	 * of the last word, and drop the states whose path does not go through
+	 * that tag.
+	 */
+	private void forceCommitOldestTag() {
+		double bestStateStat = Constants.MIN_VALUE;
+		int bestState = defaultTagId;
+		for (int tag : stateIds) {
+			ancestors[tag] = tag;
+			if (scores[tag] > bestStateStat) {
+				bestStateStat = scores[tag];
+				bestState = tag;
+			}
+		}
+		for (int k = numPending - 1; k > 0; k--) {
+			byte[] backPointers = getPendingBackPointers(k);
+			for (int tag : stateIds)
+				ancestors[tag] = backPointers[ancestors[tag]];
+		}
+		int oldestTag = ancestors[bestState];
+		for (int tag : stateIds)
+			if (ancestors[tag] != oldestTag)
+				scores[tag] = Constants.MIN_VALUE;
+		commit(1, oldestTag);
+	}
+
+	/**
+	 * Give the tags of the oldest numWords pending words to the listener and
+	 * remove them from the pending words.
+	 *
+	 * @param lastTag
+	 *            The tag of the last of those words
+	 */
+	private void commit(int numWords, int lastTag) {
+		if (path.length < numWords)
+			path = new int[Math.max(numWords, path.length * 2)];
+		path[numWords - 1] = lastTag;
+		for (int k = numWords - 1; k > 0; k--)
+			path[k - 1] = getPendingBackPointers(k)[path[k]];
+		for (int k = 0; k < numWords; k++) {
+			int index = (pendingStart + k) % pendingTokens.length;
+			String token = pendingTokens[index];
+			pendingTokens[index] = null;
+			listener.wordTagged(token, ALL_POS_TAGS.getTag(path[k]));
+		}
+		pendingStart = (pendingStart + numWords) % pendingTokens.length;
+		numPending -= numWords;
+	}
+
+	/**
+	 * Add a word to the pending words.
+	 *
+	 * @return The back pointers of the word, to be filled in
+	 */
+	private byte[] addPending(String token) {
+		if (numPending == pendingTokens.length) {
+			String[] tokens = new String[numPending * 2];
+			byte[][] backPointers = new byte[numPending * 2][];
+			for (int k = 0; k < numPending; k++) {
+				int index = (pendingStart + k) % numPending;
+				tokens[k] = pendingTokens[index];
+				backPointers[k] = pendingBackPointers[index];
+			}
+			pendingTokens = tokens;
+			pendingBackPointers = backPointers;
+			pendingStart = 0;
+		}
+		int index = (pendingStart + numPending) % pendingTokens.length;
+		if (pendingBackPointers[index] == null)
+			pendingBackPointers[index] = new byte[numTags];
+		pendingTokens[index] = token;
+		numPending++;
+		return pendingBackPointers[index];
+	}
+
+	private byte[] getPendingBackPointers(int k) {
+		return pendingBackPointers[(pendingStart + k) % pendingTokens.length];
+	}
+
+	/**
+	 * Shift the live statistics of the last word so that the best one is 0.
+	 * This does not change which state is best.
+	 */
+	private void renormalize() {
+		double bestStateStat = Constants.MIN_VALUE;
+		for (int tag : stateIds)
+			if (scores[tag] > bestStateStat)
+				bestStateStat = scores[tag];
+		if (bestStateStat == Constants.MIN_VALUE || bestStateStat >= RENORMALIZE_BELOW)
+			return;
+		for (int tag : stateIds)
+			if (scores[tag] > Constants.MIN_VALUE)
+				scores[tag] -= bestStateStat;
+	}
+
+}
@@ -1,7 +1,9 @@
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -62,15 +64,46 @@ public class POSTags {
 			":"
 	};
 	private Set<String> POSSIBLE_POS_TAGS;
+	// Dense int ids for the tags. Ids follow the iteration order of
+	// POSSIBLE_POS_TAGS so that decoders working on ids visit the tags in the
+	// same order as decoders working on strings.
+	private String[] tagsById;
+	private Map<String, Integer> idsByTag;
+	// Ids of all tags except <s> and </s>, i.e. the tags that can be
+	// associated with a word, in increasing order
+	private int[] wordTagIds;
 
 	public POSTags() {
 		POSSIBLE_POS_TAGS = new HashSet<String>(Arrays.asList(POS_TAGS));
+		tagsById = new String[POSSIBLE_POS_TAGS.size()];
+		idsByTag = new HashMap<String, Integer>();
+		Iterator<String> tagsIter = POSSIBLE_POS_TAGS.iterator();
+		int id = 0;
+		while (tagsIter.hasNext()) {
+			String tag = tagsIter.next();
+			tagsById[id] = tag;
+			idsByTag.put(tag, id);
+			id++;
+		}
+		wordTagIds = new int[tagsById.length - 2];
+		int i = 0;
+		for (id = 0; id < tagsById.length; id++)
+			if (!tagsById[id].equals("<s>") && !tagsById[id].equals("</s>"))
+				wordTagIds[i++] = id;
 	}
 
 	public boolean has(String state) {
 		return POSSIBLE_POS_TAGS.contains(state);
 	}
 
+	/**
+	 * @param tag
+	 * @return true if tag is a valid POS tag other than <s> and </s>
+	 */
+	public boolean isWordTag(String tag) {
+		return has(tag) && !tag.equals("<s>") && !tag.equals("</s>");
+	}
+
 	public Iterator<String> getIterator() {
 		return POSSIBLE_POS_TAGS.iterator();
 	}
@@ -79,4 +112,29 @@ public class POSTags {
 		return POSSIBLE_POS_TAGS.size();
 	}
 
+	/**
+	 * @param tag
+	 * @return The id of the tag, or -1 if tag is not a valid POS tag
+	 */
+	public int getId(String tag) {
+		Integer id = idsByTag.get(tag);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @return The ids of all tags except <s> and </s>, in increasing order.
+	 *         Must not be modified.
+	 */
+	public int[] getWordTagIds() {
+		return wordTagIds;
+	}
+
+	/**
+	 * @param id
+	 * @return The tag with the given id
+	 */
+	public String getTag(int id) {
+		return tagsById[id];
+	}
+
 }
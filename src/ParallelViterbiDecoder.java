@@ -0,0 +1,286 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class runs the Viterbi algorithm on a single very long line on several
+ * threads. The line is split into chunks which fill their trellis columns in
+ * parallel on a fork-join pool. Each chunk but the first starts OVERLAP words
+ * before its first word, from a column where every tag is equally likely,
+ * and only keeps the columns of its own words.
+ *
+ * The columns of a chunk are exact if its column just before its first word
+ * is the same, up to a constant, as the last column of the chunk before it:
+ * all the later columns are then shifted by the same constant, and have the
+ * same back pointers. This is checked once all the chunks are done, from the
+ * first chunk to the last. A chunk that does not pass the check is computed
+ * again from the last column of the chunk before it, on the calling thread,
+ * as ViterbiDecoder would. The back pointers of all the chunks then give the
+ * best path of the whole line.
+ *
+ * Columns are taken to be the same when their differences are all within
+ * CONVERGENCE_TOLERANCE of each other. Only the back pointers are kept for
+ * the whole line, and the emissions are computed as the columns are computed.
+ *
+ * @author Shao Fei
+ *
+ */
+public class ParallelViterbiDecoder {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+	private static final double CONVERGENCE_TOLERANCE = 1e-8;
+	// Number of words each chunk but the first computes before its first word
+	public static final int OVERLAP = 64;
+	// Chunks are not made shorter than this
+	public static final int MIN_CHUNK_LENGTH = 1024;
+	// Shared by all the decoders, created on the first line
+	private static ForkJoinPool pool;
+
+	private TrainedStatistics trainedStatistics;
+	private int numTags;
+	private int[] stateIds;
+	private int startTagId;
+	private int endTagId;
+	private int defaultTagId;
+	private int quoteTagId;
+	// Number of chunks computed again on the calling thread, over all lines
+	private long numChunksRecomputed;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 */
+	public ParallelViterbiDecoder(TrainedStatistics trainedStatistics) {
+		this.trainedStatistics = trainedStatistics;
+		numTags = ALL_POS_TAGS.size();
+		stateIds = ALL_POS_TAGS.getWordTagIds();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		defaultTagId = ALL_POS_TAGS.getId("NN");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+		numChunksRecomputed = 0;
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	public long getNumChunksRecomputed() {
+		return numChunksRecomputed;
+	}
+
+	/**
+	 * Find the best sequence of tag ids for the words in a line.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @return The id of the best tag for each word in the line
+	 */
+	public int[] decode(final String[] tokens) throws IllegalStateException {
+		int numTokens = tokens.length;
+		final SparseTransitions transitions = trainedStatistics.getSparseTransitions(Constants.MIN_VALUE);
+		final byte[] backPointers = new byte[numTokens * numTags];
+
+		// Split the line into chunks of equal length, one per thread
+		ForkJoinPool forkJoinPool = getPool();
+		int numChunks = Math.max(1, Math.min(forkJoinPool.getParallelism(), numTokens / MIN_CHUNK_LENGTH));
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int c = 0; c < numChunks; c++)
+			chunks.add(new Chunk(tokens, transitions, backPointers, (int) ((long) numTokens * c / numChunks),
+					(int) ((long) numTokens * (c + 1) / numChunks)));
+		forkJoinPool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				ForkJoinTask.invokeAll(chunks);
+			}
+		});
+
+		// Check the chunks from the first to the last, computing again those
+		// that do not start from the last column of the chunk before
+		for (int c = 1; c < numChunks; c++) {
+			Chunk chunk = chunks.get(c);
+			double[] prevLastColumn = chunks.get(c - 1).lastColumn;
+			if (!matchesUpToConstant(chunk.startColumn, prevLastColumn)) {
+				chunk.computeCore(prevLastColumn);
+				numChunksRecomputed++;
+			}
+		}
+
+		// Termination step
+		double[][] logTransition = transitions.getLogTransitionTable();
+		double[] lastColumn = chunks.get(numChunks - 1).lastColumn;
+		double bestLastStateStat = Constants.MIN_VALUE;
+		int bestLastTag = defaultTagId;
+		for (int prevTag : transitions.getPredecessorTagIds(endTagId)) {
+			double candidateStateStat = lastColumn[prevTag] + logTransition[prevTag][endTagId];
+			if (candidateStateStat > bestLastStateStat) {
+				bestLastStateStat = candidateStateStat;
+				bestLastTag = prevTag;
+			}
+		}
+
+		// Back trace from the best last tag
+		int[] path = new int[numTokens];
+		path[numTokens - 1] = bestLastTag;
+		for (int t = numTokens - 1; t > 0; t--)
+			path[t - 1] = backPointers[t * numTags + path[t]];
+		return path;
+	}
+
+	/**
+	 * @return true if both columns have the same states at MIN_VALUE and the
+	 *         other states differ by the same constant
+	 */
+	private boolean matchesUpToConstant(double[] column, double[] otherColumn) {
+		boolean hasOffset = false;
+		double offset = 0;
+		for (int tag : stateIds) {
+			boolean isLive = column[tag] > Constants.MIN_VALUE;
+			if (isLive != otherColumn[tag] > Constants.MIN_VALUE)
+				return false;
+			if (!isLive)
+				continue;
+			if (!hasOffset) {
+				offset = column[tag] - otherColumn[tag];
+				hasOffset = true;
+			} else if (Math.abs(column[tag] - otherColumn[tag] - offset) > CONVERGENCE_TOLERANCE)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The words from coreStart to coreEnd - 1 of the line, whose back pointers
+	 * are written to the back pointers of the whole line.
+	 */
+	private class Chunk extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String[] tokens;
+		private final SparseTransitions transitions;
+		private final byte[] backPointers;
+		private final int coreStart;
+		private final int coreEnd;
+		// Column of word coreStart - 1 computed by this chunk, null for the
+		// first chunk
+		double[] startColumn;
+		// Column of word coreEnd - 1
+		double[] lastColumn;
+		private double[] logEmissions;
+		private double[] logEmissionsAfterQuote;
+
+		Chunk(String[] tokens, SparseTransitions transitions, byte[] backPointers, int coreStart, int coreEnd) {
+			this.tokens = tokens;
+			this.transitions = transitions;
+			this.backPointers = backPointers;
+			this.coreStart = coreStart;
+			this.coreEnd = coreEnd;
+			logEmissions = new double[numTags];
+			logEmissionsAfterQuote = new double[numTags];
+		}
+
+		@Override
+		protected void compute() {
+			if (coreStart == 0) {
+				double[] firstColumn = newColumn();
+				fillEmissions(0);
+				double[] logStartTransition = transitions.getLogTransitionTable()[startTagId];
+				for (int tag : stateIds) {
+					firstColumn[tag] = logStartTransition[tag] + logEmissions[tag];
+					backPointers[tag] = (byte) startTagId;
+				}
+				computeColumns(firstColumn, 1, coreEnd, true);
+				return;
+			}
+
+			// Start OVERLAP words before the first word, or from the start of
+			// the line if it is closer
+			int overlapStart = Math.max(0, coreStart - OVERLAP);
+			double[] column = newColumn();
+			fillEmissions(overlapStart);
+			double[] logStartTransition = transitions.getLogTransitionTable()[startTagId];
+			for (int tag : stateIds)
+				column[tag] = overlapStart == 0 ? logStartTransition[tag] + logEmissions[tag] : logEmissions[tag];
+			startColumn = computeColumns(column, overlapStart + 1, coreStart, false);
+			computeCore(startColumn);
+		}
+
+		/**
+		 * Compute the columns of the words of the chunk from the column of the
+		 * word before.
+		 */
+		void computeCore(double[] prevColumn) {
+			double[] column = newColumn();
+			System.arraycopy(prevColumn, 0, column, 0, numTags);
+			computeColumns(column, coreStart, coreEnd, true);
+		}
+
+		/**
+		 * Compute the columns of words from to end - 1 from the column of word
+		 * from - 1, keeping the back pointers if asked to.
+		 *
+		 * @return The column of word end - 1, which is also the last column
+		 *         of the chunk if the back pointers are kept
+		 */
+		private double[] computeColumns(double[] column, int from, int end, boolean isKept) {
+			double[][] logTransition = transitions.getLogTransitionTable();
+			double[] nextColumn = newColumn();
+			byte[] columnBackPointers = new byte[numTags];
+			for (int t = from; t < end; t++) {
+				fillEmissions(t);
+				// The second word has a different emission when the previous
+				// tag is ``
+				double[] emissionsAfterQuote = logEmissions;
+				String wordAfterQuote = t == 1 ? PreparedLine.getWordAfterQuote(tokens[t]) : null;
+				if (wordAfterQuote != null) {
+					trainedStatistics.fillLogEmissionColumn(wordAfterQuote, logEmissionsAfterQuote, 0);
+					emissionsAfterQuote = logEmissionsAfterQuote;
+				}
+				byte[] rowBackPointers = isKept ? backPointers : columnBackPointers;
+				int row = isKept ? t * numTags : 0;
+
+				for (int tag : stateIds) {
+					double logEmission = logEmissions[tag];
+					double logEmissionAfterQuote = emissionsAfterQuote[tag];
+					double bestStateStat = Constants.MIN_VALUE;
+					int bestPrevState = defaultTagId;
+					if (logEmission != Constants.MIN_VALUE || logEmissionAfterQuote != Constants.MIN_VALUE) {
+						for (int prevTag : transitions.getPredecessorTagIds(tag)) {
+							double candidateStateStat = column[prevTag] + logTransition[prevTag][tag]
+									+ (prevTag == quoteTagId ? logEmissionAfterQuote : logEmission);
+							if (candidateStateStat > bestStateStat) {
+								bestStateStat = candidateStateStat;
+								bestPrevState = prevTag;
+							}
+						}
+					}
+					nextColumn[tag] = bestStateStat;
+					rowBackPointers[row + tag] = (byte) bestPrevState;
+				}
+				double[] swap = column;
+				column = nextColumn;
+				nextColumn = swap;
+			}
+			if (isKept)
+				lastColumn = column;
+			return column;
+		}
+
+		private void fillEmissions(int t) {
+			trainedStatistics.fillLogEmissionColumn(PreparedLine.getWordForEmission(tokens[t], t), logEmissions, 0);
+		}
+
+		private double[] newColumn() {
+			double[] column = new double[numTags];
+			for (int tag = 0; tag < numTags; tag++)
+				column[tag] = Constants.MIN_VALUE;
+			return column;
+		}
+	}
+
+}
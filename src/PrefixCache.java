@@ -0,0 +1,203 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the trellis columns of the lines decoded so far in a trie
+ * of their tokens, so that a line starting with the same tokens as an earlier
+ * line resumes decoding after the longest such prefix. The node reached after
+ * the tokens w1...wt holds the viterbi statistics and back pointers of word
+ * t, which only depend on w1...wt.
+ *
+ * The number of nodes is bounded. The least recently used node is evicted
+ * first. A node is always used after its children, so the least recently used
+ * node is always a leaf and the trie stays connected.
+ *
+ * The columns are only valid for the parameters they were computed with, so
+ * the cache is cleared whenever the log transition table of the model is
+ * compiled again. All the methods are synchronized so that one cache can be
+ * shared by the decoders of several threads.
+ *
+ * @author Shao Fei
+ *
+ */
+public class PrefixCache {
+
+	private static class Node {
+		final Node parent;
+		final String token;
+		final double[] scores;
+		final byte[] backPointers;
+		Map<String, Node> children;
+
+		Node(Node parent, String token, double[] scores, byte[] backPointers) {
+			this.parent = parent;
+			this.token = token;
+			this.scores = scores;
+			this.backPointers = backPointers;
+		}
+	}
+
+	private int maxNodes;
+	private Node root;
+	// All the nodes except the root, least recently used first
+	private LinkedHashMap<Node, Node> nodesByUse;
+	// The log transition table the columns were computed with
+	private double[][] sourceTable;
+
+	private long numLookups;
+	private long numHits;
+	private long numColumnsReused;
+	private long numColumnsAdded;
+	private long numEvictions;
+
+	/**
+	 * @param maxNodes
+	 *            Maximum number of columns kept
+	 */
+	public PrefixCache(int maxNodes) {
+		this.maxNodes = maxNodes;
+		root = new Node(null, null, null, null);
+		nodesByUse = new LinkedHashMap<Node, Node>(16, 0.75f, true);
+		sourceTable = null;
+	}
+
+	/**
+	 * Copy the columns of the longest cached prefix of a line into a trellis.
+	 *
+	 * @param logTransitionTable
+	 *            The current log transition table of the model
+	 * @param tokens
+	 *            The words in the line
+	 * @param scores
+	 *            Receives the viterbi statistics of the prefix, one row of
+	 *            numTags cells per word
+	 * @param backPointers
+	 *            Receives the back pointers of the prefix
+	 * @param numTags
+	 * @return The number of words of the prefix
+	 */
+	public synchronized int lookup(double[][] logTransitionTable, String[] tokens, double[] scores,
+			byte[] backPointers, int numTags) {
+		checkSourceTable(logTransitionTable);
+		numLookups++;
+		Node node = root;
+		int length = 0;
+		while (length < tokens.length && node.children != null) {
+			Node child = node.children.get(tokens[length]);
+			if (child == null)
+				break;
+			System.arraycopy(child.scores, 0, scores, length * numTags, numTags);
+			System.arraycopy(child.backPointers, 0, backPointers, length * numTags, numTags);
+			node = child;
+			length++;
+		}
+		if (length > 0) {
+			numHits++;
+			numColumnsReused += length;
+			touch(node);
+		}
+		return length;
+	}
+
+	/**
+	 * Add the columns of a decoded line.
+	 *
+	 * @param logTransitionTable
+	 *            The log transition table the line was decoded with
+	 * @param tokens
+	 *            The words in the line
+	 * @param scores
+	 *            The viterbi statistics of the line, one row of numTags cells
+	 *            per word
+	 * @param backPointers
+	 *            The back pointers of the line
+	 * @param numTags
+	 */
+	public synchronized void store(double[][] logTransitionTable, String[] tokens, double[] scores,
+			byte[] backPointers, int numTags) {
+		checkSourceTable(logTransitionTable);
+		int length = Math.min(tokens.length, maxNodes);
+		Node node = root;
+		for (int t = 0; t < length; t++) {
+			if (node.children == null)
+				node.children = new HashMap<String, Node>();
+			Node child = node.children.get(tokens[t]);
+			if (child == null) {
+				double[] columnScores = new double[numTags];
+				byte[] columnBackPointers = new byte[numTags];
+				System.arraycopy(scores, t * numTags, columnScores, 0, numTags);
+				System.arraycopy(backPointers, t * numTags, columnBackPointers, 0, numTags);
+				child = new Node(node, tokens[t], columnScores, columnBackPointers);
+				node.children.put(tokens[t], child);
+				nodesByUse.put(child, child);
+				numColumnsAdded++;
+			}
+			node = child;
+		}
+		if (length > 0)
+			touch(node);
+
+		// Evict the least recently used leaves
+		Iterator<Node> nodesIter = nodesByUse.keySet().iterator();
+		while (nodesByUse.size() > maxNodes) {
+			Node leaf = nodesIter.next();
+			nodesIter.remove();
+			leaf.parent.children.remove(leaf.token);
+			numEvictions++;
+		}
+	}
+
+	/**
+	 * Mark a node and its ancestors as used, the ancestors last.
+	 */
+	private void touch(Node node) {
+		for (; node != root; node = node.parent)
+			nodesByUse.get(node);
+	}
+
+	private void checkSourceTable(double[][] logTransitionTable) {
+		if (sourceTable != logTransitionTable) {
+			clear();
+			sourceTable = logTransitionTable;
+		}
+	}
+
+	public synchronized void clear() {
+		root = new Node(null, null, null, null);
+		nodesByUse.clear();
+	}
+
+	public synchronized int size() {
+		return nodesByUse.size();
+	}
+
+	public synchronized long getNumLookups() {
+		return numLookups;
+	}
+
+	public synchronized long getNumHits() {
+		return numHits;
+	}
+
+	/**
+	 * @return The fraction of lookups that found a prefix of at least one word
+	 */
+	public synchronized double getHitRate() {
+		return numLookups == 0 ? 0.0 : (double) numHits / numLookups;
+	}
+
+	public synchronized long getNumColumnsReused() {
+		return numColumnsReused;
+	}
+
+	public synchronized long getNumColumnsAdded() {
+		return numColumnsAdded;
+	}
+
+	public synchronized long getNumEvictions() {
+		return numEvictions;
+	}
+
+}
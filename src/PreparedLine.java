@@ -0,0 +1,303 @@
+
+/**
+ * This class resolves each token of a line once before decoding: the word
+ * after decapitalization, its vocabulary id and log(P(w|t)) for all tags. The
+ * decoders then only add up precomputed numbers.
+ *
+ * The only emission that depends on the previous tag is that of the second
+ * word when the previous tag is ``, which gets its own column.
+ *
+ * Each token also has a list of candidate tags, which is all the tags unless
+ * the line is narrowed down, e.g. by the tag dictionary. A token whose tag is
+ * already known only has that tag, and its emission is not computed: as
+ * every path goes through the known tag, log(P(w|t)) is taken to be 0 so that
+ * the line can still be decoded when the model gives P(w|t) = 0.
+ *
+ * The arrays are only ever grown so that one PreparedLine can be reused for
+ * all the lines decoded on the same thread.
+ *
+ * @author Shao Fei
+ *
+ */
+public class PreparedLine {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+	// The candidate tags of a token whose tag is known, at the id of the tag
+	private static final int[][] SINGLE_TAG_IDS = new int[ALL_POS_TAGS.size()][];
+
+	static {
+		for (int tag = 0; tag < SINGLE_TAG_IDS.length; tag++)
+			SINGLE_TAG_IDS[tag] = new int[] { tag };
+	}
+
+	private int numTokens;
+	private int numTags;
+	private String[] tokens;
+	// The word used for the emission of each token, after decapitalization
+	private String[] words;
+	// Vocabulary id of each word, -1 if the word is unknown
+	private int[] vocabularyIds;
+	// log(P(w|t)) for word t and tag s, at index t * numTags + s
+	private double[] logEmissions;
+	// log(P(w|t)) for the second word when the previous tag is ``
+	private double[] logEmissionsAfterQuote;
+	private boolean hasEmissionsAfterQuote;
+	// Ids of the tags that the decoder considers for each word, in increasing
+	// order, and how many there are. The arrays are shared and must not be
+	// modified, and can be longer than the number of candidates.
+	private int[][] candidateTags;
+	private int[] numCandidateTags;
+	// Receives the tags seen with the word of each token in the training set
+	private int[][] tagDictionaryIds;
+	// Id of the known tag of each token, -1 if the tag is not known
+	private int[] fixedTagIds;
+	// Whether the tag dictionary narrowed down the candidates of some token
+	private boolean hasTagDictionary;
+
+	public PreparedLine() {
+		numTags = ALL_POS_TAGS.size();
+		tokens = new String[0];
+		words = new String[0];
+		vocabularyIds = new int[0];
+		logEmissions = new double[0];
+		candidateTags = new int[0][];
+		numCandidateTags = new int[0];
+		tagDictionaryIds = new int[0][];
+		fixedTagIds = new int[0];
+		logEmissionsAfterQuote = new double[numTags];
+	}
+
+	/**
+	 * Resolve the tokens of a new line.
+	 *
+	 * @param model
+	 *            Model statistics that has been trained
+	 * @param lineTokens
+	 *            The words in the line
+	 */
+	public void prepare(TrainedStatistics model, String[] lineTokens) throws IllegalStateException {
+		prepare(model, lineTokens, null);
+	}
+
+	/**
+	 * Resolve the tokens of a new line whose tags are known for some tokens.
+	 *
+	 * @param model
+	 *            Model statistics that has been trained
+	 * @param lineTokens
+	 *            The words in the line
+	 * @param lineFixedTagIds
+	 *            Id of the known tag of each token, -1 if the tag is not
+	 *            known. null if no tag is known
+	 */
+	public void prepare(TrainedStatistics model, String[] lineTokens, int[] lineFixedTagIds) throws IllegalStateException {
+		prepare(model, lineTokens, lineFixedTagIds, 0);
+	}
+
+	/**
+	 * Resolve the tokens of a new line, computing the emissions only from a
+	 * given token on, e.g. when the trellis columns of the tokens before are
+	 * already known.
+	 *
+	 * @param model
+	 *            Model statistics that has been trained
+	 * @param lineTokens
+	 *            The words in the line
+	 * @param lineFixedTagIds
+	 *            Id of the known tag of each token, -1 if the tag is not
+	 *            known. null if no tag is known
+	 * @param firstEmissionIndex
+	 *            Index of the first token whose emissions are computed
+	 */
+	public void prepare(TrainedStatistics model, String[] lineTokens, int[] lineFixedTagIds, int firstEmissionIndex)
+			throws IllegalStateException {
+		numTokens = lineTokens.length;
+		ensureCapacity(numTokens);
+		hasTagDictionary = false;
+
+		for (int t = 0; t < numTokens; t++) {
+			tokens[t] = lineTokens[t];
+			String word = getWordForEmission(lineTokens[t], t);
+			words[t] = word;
+			vocabularyIds[t] = model.getVocabularyId(word);
+			fixedTagIds[t] = lineFixedTagIds == null ? -1 : lineFixedTagIds[t];
+			if (fixedTagIds[t] == -1) {
+				candidateTags[t] = ALL_POS_TAGS.getWordTagIds();
+				if (t >= firstEmissionIndex)
+					model.fillLogEmissionColumn(word, logEmissions, t * numTags);
+			} else {
+				candidateTags[t] = SINGLE_TAG_IDS[fixedTagIds[t]];
+				for (int tag = 0; tag < numTags; tag++)
+					logEmissions[t * numTags + tag] = Constants.MIN_VALUE;
+				logEmissions[t * numTags + fixedTagIds[t]] = 0.0;
+			}
+			numCandidateTags[t] = candidateTags[t].length;
+		}
+
+		hasEmissionsAfterQuote = false;
+		if (numTokens > 1 && fixedTagIds[1] == -1 && firstEmissionIndex <= 1) {
+			String wordAfterQuote = getWordAfterQuote(tokens[1]);
+			if (wordAfterQuote != null) {
+				model.fillLogEmissionColumn(wordAfterQuote, logEmissionsAfterQuote, 0);
+				hasEmissionsAfterQuote = true;
+			}
+		}
+	}
+
+	/**
+	 * @param token
+	 *            A token of a line
+	 * @param index
+	 *            Index of the token in the line
+	 * @return The word used for the emission of the token
+	 */
+	public static String getWordForEmission(String token, int index) {
+		// Decapitalize first word if only first letter is uppercase, except
+		// word "I"
+		if (index == 0 && !token.equals("I") && hasNoCapitalAfterFirstLetter(token))
+			return token.toLowerCase();
+		return token;
+	}
+
+	/**
+	 * When first token in line is ``, the second word is decapitalized if only
+	 * its first letter is uppercase, except word "I"
+	 * 
+	 * @param token
+	 *            The second token of a line
+	 * @return The word used for the emission of the second token when the
+	 *         previous tag is ``, or null if it is the token itself
+	 */
+	public static String getWordAfterQuote(String token) {
+		if (!token.equals("I") && hasNoCapitalAfterFirstLetter(token) && !token.toLowerCase().equals(token))
+			return token.toLowerCase();
+		return null;
+	}
+
+	/**
+	 * Restrict each known word that was seen at least minWordCount times in
+	 * the training set to the tags it was seen with. Unknown words keep all
+	 * the tags. The second word is left alone when its emission depends on
+	 * the previous tag, and so are the tokens whose tag is known.
+	 *
+	 * @param model
+	 *            The model the line was prepared with
+	 * @param minWordCount
+	 *            Minimum C(w) for a word to be restricted
+	 */
+	public void applyTagDictionary(TrainedStatistics model, int minWordCount) {
+		for (int t = 0; t < numTokens; t++) {
+			int vocabularyId = vocabularyIds[t];
+			if (vocabularyId == -1 || model.getWordCount(vocabularyId) < minWordCount)
+				continue;
+			if (fixedTagIds[t] != -1)
+				continue;
+			if (t == 1 && hasEmissionsAfterQuote)
+				continue;
+			int numObservedTags = model.getObservedTagIds(vocabularyId, tagDictionaryIds[t]);
+			if (numObservedTags > 0) {
+				candidateTags[t] = tagDictionaryIds[t];
+				numCandidateTags[t] = numObservedTags;
+				hasTagDictionary = true;
+			}
+		}
+	}
+
+	/**
+	 * @return Whether the tag dictionary narrowed down the candidate tags of
+	 *         some token
+	 */
+	public boolean hasTagDictionary() {
+		return hasTagDictionary;
+	}
+
+	/**
+	 * Give all the tags back to the tokens narrowed down by the tag
+	 * dictionary, e.g. when no path through the remaining tags has a
+	 * probability above 0. The emissions were computed for all the tags, so
+	 * they are still there.
+	 */
+	public void removeTagDictionary() {
+		for (int t = 0; t < numTokens; t++) {
+			if (fixedTagIds[t] == -1) {
+				candidateTags[t] = ALL_POS_TAGS.getWordTagIds();
+				numCandidateTags[t] = candidateTags[t].length;
+			}
+		}
+		hasTagDictionary = false;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (tokens.length >= capacity)
+			return;
+		tokens = new String[capacity];
+		words = new String[capacity];
+		vocabularyIds = new int[capacity];
+		logEmissions = new double[capacity * numTags];
+		candidateTags = new int[capacity][];
+		numCandidateTags = new int[capacity];
+		tagDictionaryIds = new int[capacity][numTags];
+		fixedTagIds = new int[capacity];
+	}
+
+	public int getNumTokens() {
+		return numTokens;
+	}
+
+	public String getToken(int index) {
+		return tokens[index];
+	}
+
+	public String getWord(int index) {
+		return words[index];
+	}
+
+	public int getVocabularyId(int index) {
+		return vocabularyIds[index];
+	}
+
+	/**
+	 * @return The id of the known tag of the token at index, -1 if the tag is
+	 *         not known
+	 */
+	public int getFixedTagId(int index) {
+		return fixedTagIds[index];
+	}
+
+	/**
+	 * @return The ids of the tags considered for the word at index, in
+	 *         increasing order, in the first getNumCandidateTags(index)
+	 *         elements. Must not be modified.
+	 */
+	public int[] getCandidateTags(int index) {
+		return candidateTags[index];
+	}
+
+	/**
+	 * @return The number of tags considered for the word at index
+	 */
+	public int getNumCandidateTags(int index) {
+		return numCandidateTags[index];
+	}
+
+	/**
+	 * @return log(P(w|t)) for word t and tag s, at index t * number of tags +
+	 *         s
+	 */
+	public double[] getLogEmissions() {
+		return logEmissions;
+	}
+
+	/**
+	 * @return log(P(w|t)) for the second word when the previous tag is ``, or
+	 *         null if it is the same as for the other previous tags
+	 */
+	public double[] getLogEmissionsAfterQuote() {
+		return hasEmissionsAfterQuote ? logEmissionsAfterQuote : null;
+	}
+
+	private static boolean hasNoCapitalAfterFirstLetter(String word) {
+		return word.substring(1).toLowerCase().equals(word.substring(1));
+	}
+
+}
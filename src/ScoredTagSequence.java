@@ -0,0 +1,32 @@
+
+/**
+ * A sequence of tags for the words of a line, with its log probability.
+ *
+ * @author Shao Fei
+ *
+ */
+public class ScoredTagSequence {
+
+	private String[] tags;
+	private double logProb;
+
+	/**
+	 * @param tags
+	 *            Tag of each word in the line
+	 * @param logProb
+	 *            log(P(words, tags)) of the line under the model
+	 */
+	public ScoredTagSequence(String[] tags, double logProb) {
+		this.tags = tags;
+		this.logProb = logProb;
+	}
+
+	public String[] getTags() {
+		return tags;
+	}
+
+	public double getLogProb() {
+		return logProb;
+	}
+
+}
@@ -112,6 +112,19 @@ public class SetReader {
 		return currLineTokens[currTokenIndex].trim();
 	}
 
+	/**
+	 * Get all the tokens in the current line without affecting current token
+	 * or line being processed
+	 * 
+	 * @return the tokens in the current line
+	 */
+	public String[] getCurrLineTokens() {
+		String[] tokens = new String[currLineTokens.length];
+		for (int i = 0; i < currLineTokens.length; i++)
+			tokens[i] = currLineTokens[i].trim();
+		return tokens;
+	}
+
 	/**
 	 * Get the current line without affecting current token or line being
 	 * processed
@@ -0,0 +1,140 @@
+
+/**
+ * This class lists, for each tag, the previous tags that can transit to it,
+ * so that the decoders only visit transitions that can be on the best path.
+ * Transitions with P(ti|ti-1) = 0 are always left out. With a minimum
+ * log(P(ti|ti-1)) above MIN_VALUE, unlikely transitions of smoothed models are
+ * left out as well.
+ *
+ * @author Shao Fei
+ *
+ */
+public class SparseTransitions {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	// The table this was built from
+	private double[][] sourceTable;
+	private double minLogTransitionProb;
+	// log(P(ti|ti-1)) at [id of ti-1][id of ti], MIN_VALUE for the transitions
+	// that are left out
+	private double[][] logTransitionTable;
+	// The same as logTransitionTable, at [id of ti][id of ti-1]
+	private double[][] logTransitionTableByTag;
+	// Ids of the tags ti-1 other than <s> that are kept for each tag ti, in
+	// increasing order
+	private int[][] predecessorTagIds;
+	// Highest log(P(ti|ti-1)) over the tags ti-1 other than <s> for each tag
+	// ti, MIN_VALUE if no tag can transit to ti
+	private double[] bestLogTransitionsTo;
+	// P(ti|ti-1) at [id of ti][id of ti-1], 0 for the transitions that are
+	// left out. Computed when first needed
+	private double[][] transitionTableByTag;
+
+	/**
+	 * @param sourceTable
+	 *            log(P(ti|ti-1)) at [id of ti-1][id of ti]
+	 * @param minLogTransitionProb
+	 *            Transitions with a lower log(P(ti|ti-1)) are left out
+	 */
+	public SparseTransitions(double[][] sourceTable, double minLogTransitionProb) {
+		this.sourceTable = sourceTable;
+		this.minLogTransitionProb = minLogTransitionProb;
+		int numTags = sourceTable.length;
+		int[] wordTagIds = ALL_POS_TAGS.getWordTagIds();
+
+		logTransitionTable = new double[numTags][numTags];
+		for (int prevTag = 0; prevTag < numTags; prevTag++)
+			for (int tag = 0; tag < numTags; tag++)
+				logTransitionTable[prevTag][tag] = isKept(sourceTable[prevTag][tag]) ? sourceTable[prevTag][tag]
+						: Constants.MIN_VALUE;
+
+		logTransitionTableByTag = new double[numTags][numTags];
+		for (int prevTag = 0; prevTag < numTags; prevTag++)
+			for (int tag = 0; tag < numTags; tag++)
+				logTransitionTableByTag[tag][prevTag] = logTransitionTable[prevTag][tag];
+
+		predecessorTagIds = new int[numTags][];
+		int[] predecessors = new int[wordTagIds.length];
+		for (int tag = 0; tag < numTags; tag++) {
+			int numPredecessors = 0;
+			for (int prevTag : wordTagIds)
+				if (logTransitionTable[prevTag][tag] != Constants.MIN_VALUE)
+					predecessors[numPredecessors++] = prevTag;
+			predecessorTagIds[tag] = new int[numPredecessors];
+			System.arraycopy(predecessors, 0, predecessorTagIds[tag], 0, numPredecessors);
+		}
+
+		bestLogTransitionsTo = new double[numTags];
+		for (int tag = 0; tag < numTags; tag++) {
+			bestLogTransitionsTo[tag] = Constants.MIN_VALUE;
+			for (int prevTag : predecessorTagIds[tag])
+				bestLogTransitionsTo[tag] = Math.max(bestLogTransitionsTo[tag], logTransitionTable[prevTag][tag]);
+		}
+	}
+
+	private boolean isKept(double logTransitionProb) {
+		return logTransitionProb > Constants.MIN_VALUE && logTransitionProb >= minLogTransitionProb;
+	}
+
+	/**
+	 * @return true if this was built from sourceTable with the same minimum
+	 */
+	public boolean isBuiltFrom(double[][] sourceTable, double minLogTransitionProb) {
+		return this.sourceTable == sourceTable && this.minLogTransitionProb == minLogTransitionProb;
+	}
+
+	/**
+	 * @return log(P(ti|ti-1)) at [id of ti-1][id of ti], MIN_VALUE for the
+	 *         transitions that are left out. Must not be modified.
+	 */
+	public double[][] getLogTransitionTable() {
+		return logTransitionTable;
+	}
+
+	/**
+	 * @return log(P(ti|ti-1)) at [id of ti][id of ti-1], MIN_VALUE for the
+	 *         transitions that are left out. Must not be modified.
+	 */
+	public double[][] getLogTransitionTableByTag() {
+		return logTransitionTableByTag;
+	}
+
+	/**
+	 * @return P(ti|ti-1) at [id of ti][id of ti-1], 0 for the transitions that
+	 *         are left out. Must not be modified.
+	 */
+	public double[][] getTransitionTableByTag() {
+		if (transitionTableByTag == null) {
+			int numTags = logTransitionTableByTag.length;
+			double[][] table = new double[numTags][numTags];
+			for (int tag = 0; tag < numTags; tag++)
+				for (int prevTag = 0; prevTag < numTags; prevTag++)
+					if (logTransitionTableByTag[tag][prevTag] != Constants.MIN_VALUE)
+						table[tag][prevTag] = Math.exp(logTransitionTableByTag[tag][prevTag]);
+			transitionTableByTag = table;
+		}
+		return transitionTableByTag;
+	}
+
+	/**
+	 * @param tag
+	 *            Id of the tag ti
+	 * @return Ids of the tags ti-1 other than <s> that can transit to ti, in
+	 *         increasing order. Must not be modified.
+	 */
+	public int[] getPredecessorTagIds(int tag) {
+		return predecessorTagIds[tag];
+	}
+
+	/**
+	 * @param tag
+	 *            Id of the tag ti
+	 * @return The highest log(P(ti|ti-1)) over the tags ti-1 other than <s>,
+	 *         MIN_VALUE if no tag can transit to ti
+	 */
+	public double getBestLogTransitionTo(int tag) {
+		return bestLogTransitionsTo[tag];
+	}
+
+}
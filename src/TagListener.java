@@ -0,0 +1,21 @@
+
+/**
+ * Receives the tags of a stream of words as soon as they are known, in the
+ * order of the words.
+ *
+ * @author Shao Fei
+ *
+ */
+public interface TagListener {
+
+	/**
+	 * Called once for each word of the stream.
+	 *
+	 * @param word
+	 *            The word as it was given to the decoder
+	 * @param tag
+	 *            The best tag for the word
+	 */
+	public void wordTagged(String word, String tag);
+
+}
@@ -10,23 +10,95 @@ import java.util.Map;
  */
 public class Tagger {
 
-	private Model modelStats;
+	// A Model, or a CompiledModel shared with other threads
+	private TrainedStatistics modelStats;
 	private String taggingFile;
 	private String taggedFile;
+	// Use the original string based Viterbi instead of ViterbiDecoder
+	private boolean useLegacyViterbi;
+	private DecoderSettings decoderSettings;
+	// Number of trellis states dropped by the beam during the last call to
+	// tag()
+	private long numStatesPruned;
+	// Cache of trellis columns used when decoding line by line, kept across
+	// calls to tag()
+	private PrefixCache prefixCache;
+	// Number of lines tagged at each level of AnytimeDecoder during the last
+	// call to tag() with a deadline
+	private long[] numLinesByLevel;
+	// Number of states expanded by AStarDecoder and number of lines it
+	// decoded during the last call to tag()
+	private long numStatesExpanded;
+	private long numLinesSearched;
 
 	/**
 	 * @param learner
-	 *            The trained Learner
+	 *            The trained Learner, or a model compiled from it
 	 * @param taggingFile
 	 *            The file name of the input file to be tagged
 	 * @param taggedFile
 	 *            The file name of the output tagged file
 	 */
-	public Tagger(Model learner, String taggingFile, String taggedFile) {
+	public Tagger(TrainedStatistics learner, String taggingFile, String taggedFile) {
 		assert learner.isTrained();
 		this.modelStats = learner;
 		this.taggingFile = taggingFile;
 		this.taggedFile = taggedFile;
+		useLegacyViterbi = false;
+		decoderSettings = new DecoderSettings();
+		numStatesPruned = 0;
+		numLinesByLevel = new long[AnytimeDecoder.LEVEL_EXACT + 1];
+	}
+
+	/**
+	 * @param useLegacyViterbi
+	 *            true to tag with Viterbi, which needs a Model rather than a
+	 *            CompiledModel
+	 */
+	public void setUseLegacyViterbi(boolean useLegacyViterbi) {
+		if (useLegacyViterbi && !(modelStats instanceof Model))
+			throw new IllegalStateException("Viterbi needs a Model!");
+		this.useLegacyViterbi = useLegacyViterbi;
+	}
+
+	/**
+	 * @param decoderSettings
+	 *            Settings for ViterbiDecoder, e.g. to enable a beam
+	 */
+	public void setDecoderSettings(DecoderSettings decoderSettings) {
+		this.decoderSettings = decoderSettings;
+		prefixCache = null;
+	}
+
+	public long getNumStatesPruned() {
+		return numStatesPruned;
+	}
+
+	public long getNumStatesExpanded() {
+		return numStatesExpanded;
+	}
+
+	public long getNumLinesSearched() {
+		return numLinesSearched;
+	}
+
+	/**
+	 * @param level
+	 *            One of the levels of AnytimeDecoder
+	 * @return The number of lines tagged at that level when DEADLINE_MILLIS
+	 *         is set
+	 */
+	public long getNumLines(int level) {
+		return numLinesByLevel[level];
+	}
+
+	/**
+	 * @return The cache of trellis columns, null if PREFIX_CACHE_SIZE is 0
+	 */
+	public PrefixCache getPrefixCache() {
+		if (prefixCache == null && decoderSettings.PREFIX_CACHE_SIZE > 0)
+			prefixCache = new PrefixCache(decoderSettings.PREFIX_CACHE_SIZE);
+		return prefixCache;
 	}
 
 	/**
@@ -39,21 +111,215 @@ public class Tagger {
 
 		SetReader reader = new SetReader(taggingFile);
 		TaggedSetWriter writer = new TaggedSetWriter(taggedFile);
+		if (!useLegacyViterbi && modelStats.isSecondOrder())
+			tagWithTrigrams(reader, writer);
+		else if (!useLegacyViterbi && decoderSettings.PRETAGGED)
+			tagPretagged(reader, writer);
+		else if (!useLegacyViterbi && decoderSettings.STREAMING)
+			tagAsStream(reader, writer);
+		else if (!useLegacyViterbi && decoderSettings.A_STAR)
+			tagWithAStar(reader, writer);
+		else if (!useLegacyViterbi && decoderSettings.DEADLINE_MILLIS > 0)
+			tagWithDeadline(reader, writer);
+		else if (!useLegacyViterbi && decoderSettings.K_BEST > 1)
+			tagKBest(reader, writer);
+		else if (!useLegacyViterbi && decoderSettings.BATCH_SIZE > 0)
+			tagInBatches(reader, writer);
+		else
+			tagLineByLine(reader, writer);
+		writer.close();
+		reader.close();
+	}
+
+	private void tagLineByLine(SetReader reader, TaggedSetWriter writer) {
+		ViterbiDecoder decoder = new ViterbiDecoder(modelStats, decoderSettings, getPrefixCache());
 
 		while (reader.nextLine()) {
-			// Run Viterbi algorithm using the trained statistics in the Learner
-			// class
-			Viterbi vit = new Viterbi(reader, modelStats);
-			vit.runViterbi();
-
-			Map<String, ArrayList<String>> backPointer = vit.getBackPointer();
-			String lastTag = vit.getLastTag();
-			writeTaggedLineToFile(reader, writer, backPointer, lastTag);
+			if (useLegacyViterbi) {
+				// Run Viterbi algorithm using the trained statistics in the
+				// Learner class
+				Viterbi vit = new Viterbi(reader, (Model) modelStats);
+				vit.runViterbi();
+
+				Map<String, ArrayList<String>> backPointer = vit.getBackPointer();
+				String lastTag = vit.getLastTag();
+				writeTaggedLineToFile(reader, writer, backPointer, lastTag);
+			} else {
+				String[] words = reader.getCurrLineTokens();
+				writeTaggedLineToFile(writer, words, decoder.tag(words));
+			}
 		}
-		writer.close();
+		numStatesPruned = decoder.getNumStatesPruned();
+	}
+
+	/**
+	 * Decode lines where some tokens are written as word/tag, with the tag of
+	 * those words fixed to the given tag. The words are written back with
+	 * their fixed tag.
+	 */
+	private void tagPretagged(SetReader reader, TaggedSetWriter writer) {
+		ViterbiDecoder decoder = new ViterbiDecoder(modelStats, decoderSettings);
+		POSTags allTags = new POSTags();
+		while (reader.nextLine()) {
+			String[] tokens = reader.getCurrLineTokens();
+			String[] words = new String[tokens.length];
+			String[] fixedTags = new String[tokens.length];
+			for (int i = 0; i < tokens.length; i++) {
+				// Split at the last "/" as in TaggedSetReader, but only if
+				// what follows is a tag
+				int delimiterIndex = tokens[i].lastIndexOf("/");
+				if (delimiterIndex > 0 && allTags.isWordTag(tokens[i].substring(delimiterIndex + 1))) {
+					words[i] = tokens[i].substring(0, delimiterIndex);
+					fixedTags[i] = tokens[i].substring(delimiterIndex + 1);
+				} else
+					words[i] = tokens[i];
+			}
+			writeTaggedLineToFile(writer, words, decoder.tag(words, fixedTags));
+		}
+		numStatesPruned = decoder.getNumStatesPruned();
+	}
+
+	/**
+	 * Decode line by line with TrigramViterbiDecoder, for models that are
+	 * second-order. The other decoders only use P(ti|ti-1).
+	 */
+	private void tagWithTrigrams(SetReader reader, TaggedSetWriter writer) {
+		TrigramViterbiDecoder decoder = new TrigramViterbiDecoder(modelStats, decoderSettings);
+		while (reader.nextLine()) {
+			String[] words = reader.getCurrLineTokens();
+			writeTaggedLineToFile(writer, words, decoder.tag(words));
+		}
+		numStatesPruned = decoder.getNumStatesPruned();
+	}
+
+	/**
+	 * Decode line by line with AStarDecoder, counting the states expanded.
+	 */
+	private void tagWithAStar(SetReader reader, TaggedSetWriter writer) {
+		AStarDecoder decoder = new AStarDecoder(modelStats);
+		while (reader.nextLine()) {
+			String[] words = reader.getCurrLineTokens();
+			writeTaggedLineToFile(writer, words, decoder.tag(words));
+		}
+		numStatesExpanded = decoder.getTotalStatesExpanded();
+		numLinesSearched = decoder.getNumLinesDecoded();
+	}
+
+	/**
+	 * Tag each line with AnytimeDecoder within DEADLINE_MILLIS of the time it
+	 * is read.
+	 */
+	private void tagWithDeadline(SetReader reader, TaggedSetWriter writer) {
+		AnytimeDecoder decoder = new AnytimeDecoder(modelStats);
+		long deadlineNanos = decoderSettings.DEADLINE_MILLIS * 1000000L;
+		while (reader.nextLine()) {
+			String[] words = reader.getCurrLineTokens();
+			AnytimeResult result = decoder.tag(words, System.nanoTime() + deadlineNanos);
+			writeTaggedLineToFile(writer, words, result.getTags());
+		}
+		for (int level = 0; level < numLinesByLevel.length; level++)
+			numLinesByLevel[level] = decoder.getNumLines(level);
+	}
+
+	/**
+	 * Write the K_BEST best sequences of tags of each line, from the best, one
+	 * per line. The sequences of each line are followed by an empty line.
+	 */
+	private void tagKBest(SetReader reader, TaggedSetWriter writer) {
+		KBestDecoder decoder = new KBestDecoder(modelStats);
+		while (reader.nextLine()) {
+			String[] words = reader.getCurrLineTokens();
+			for (ScoredTagSequence sequence : decoder.tag(words, decoderSettings.K_BEST))
+				writeTaggedLineToFile(writer, words, sequence.getTags());
+			writer.writeLine();
+		}
+	}
+
+	/**
+	 * Tags the untagged corpus in taggingFile as one stream of words, ignoring
+	 * the line breaks. The listener gets each tag as soon as it is known.
+	 *
+	 * @param listener
+	 *            Receives the tags, in the order of the words
+	 */
+	public void tagStream(TagListener listener) throws IllegalStateException {
+		if (!modelStats.isTrained())
+			throw new IllegalStateException("Model is not trained!");
+
+		SetReader reader = new SetReader(taggingFile);
+		OnlineViterbiDecoder decoder = new OnlineViterbiDecoder(modelStats, decoderSettings.MAX_LOOKAHEAD, listener);
+		while (reader.nextLine())
+			for (String word : reader.getCurrLineTokens())
+				decoder.addToken(word);
+		decoder.endOfStream();
 		reader.close();
 	}
 
+	/**
+	 * Decode each line as a stream of words with OnlineViterbiDecoder, which
+	 * writes the tags as soon as they are known. The stream is ended at each
+	 * line break, so that every line starts from <s> and ends with </s> as
+	 * when decoding line by line.
+	 */
+	private void tagAsStream(SetReader reader, final TaggedSetWriter writer) {
+		OnlineViterbiDecoder decoder = new OnlineViterbiDecoder(modelStats, decoderSettings.MAX_LOOKAHEAD,
+				new TagListener() {
+					@Override
+					public void wordTagged(String word, String tag) {
+						writer.writeWord(word);
+						writer.writeTag(tag);
+						writer.writeTokenToEndOfLine();
+					}
+				});
+		while (reader.nextLine()) {
+			for (String word : reader.getCurrLineTokens())
+				decoder.addToken(word);
+			decoder.endOfStream();
+			writer.writeLine();
+		}
+	}
+
+	/**
+	 * Read BATCH_SIZE lines at a time and decode them together with
+	 * BatchDecoder. The tagged lines are written in the original order.
+	 */
+	private void tagInBatches(SetReader reader, TaggedSetWriter writer) {
+		BatchDecoder decoder = new BatchDecoder(modelStats, decoderSettings);
+		ArrayList<String[]> batch = new ArrayList<String[]>();
+		boolean hasNextLine = reader.nextLine();
+		while (hasNextLine) {
+			batch.add(reader.getCurrLineTokens());
+			hasNextLine = reader.nextLine();
+			if (batch.size() == decoderSettings.BATCH_SIZE || !hasNextLine) {
+				String[][] lines = batch.toArray(new String[batch.size()][]);
+				String[][] tags = decoder.tag(lines);
+				for (int i = 0; i < lines.length; i++)
+					writeTaggedLineToFile(writer, lines[i], tags[i]);
+				batch.clear();
+			}
+		}
+		numStatesPruned = decoder.getNumStatesPruned();
+	}
+
+	/**
+	 * Write to the file (specified in writer) a tagged line.
+	 * 
+	 * @param writer
+	 *            Writer that writes to a file
+	 * @param words
+	 *            Words in the line
+	 * @param tags
+	 *            Tag of each word in the line
+	 */
+	private void writeTaggedLineToFile(TaggedSetWriter writer, String[] words, String[] tags) {
+		for (int i = 0; i < words.length; i++) {
+			writer.writeWord(words[i]);
+			writer.writeTag(tags[i]);
+			writer.writeTokenToEndOfLine();
+		}
+		writer.writeLine();
+	}
+
 	/**
 	 * Write to the file (specified in writer) a tagged line using backPointer
 	 * computed from the Viterbi algorithm.
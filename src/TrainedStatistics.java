@@ -0,0 +1,99 @@
+
+/**
+ * The statistics of a trained model that the decoders read while tagging.
+ *
+ * Model implements it directly, computing some of its tables when they are
+ * first needed and again whenever its parameters change, so it must only be
+ * used by one thread at a time. CompiledModel implements it with tables that
+ * are all computed up front and never change, so it can be shared by any
+ * number of threads.
+ *
+ * @author Shao Fei
+ *
+ */
+public interface TrainedStatistics {
+
+	public boolean isTrained();
+
+	/**
+	 * @return true if the tagger should decode with P(ti|ti-2,ti-1)
+	 */
+	public boolean isSecondOrder();
+
+	/**
+	 * Compute log(P(w|t)) of a word w for all tags t at once.
+	 *
+	 * @param word
+	 *            The query word w
+	 * @param column
+	 *            Receives log(P(w|t)) at offset + id of t, MIN_VALUE where
+	 *            P(w|t) = 0 and for the tags <s> and </s>
+	 * @param offset
+	 */
+	public void fillLogEmissionColumn(String word, double[] column, int offset) throws IllegalStateException;
+
+	/**
+	 * @param word
+	 *            The word, which can be any view of its characters. It is not
+	 *            kept, and looking it up allocates nothing
+	 * @return The dense id of the word, or -1 if the word is not in the
+	 *         vocabulary
+	 */
+	public int getVocabularyId(CharSequence word);
+
+	/**
+	 * @param vocabularyId
+	 *            Id of a word w in the vocabulary
+	 * @return C(w)
+	 */
+	public int getWordCount(int vocabularyId);
+
+	/**
+	 * Copy the ids of the tags t with C(w,t) > 0 into a buffer of the caller,
+	 * so that looking them up allocates nothing.
+	 *
+	 * @param vocabularyId
+	 *            Id of a word w in the vocabulary
+	 * @param tagIds
+	 *            Receives the ids in increasing order. Must have room for all
+	 *            the tags
+	 * @return The number of ids copied
+	 */
+	public int getObservedTagIds(int vocabularyId, int[] tagIds);
+
+	/**
+	 * @param vocabularyId
+	 *            Id of a word w in the vocabulary
+	 * @return The id of the tag t with the highest C(w,t)
+	 */
+	public int getMostFrequentTagId(int vocabularyId);
+
+	/**
+	 * @param word
+	 * @param tag
+	 * @return C(w,t) in the training set
+	 */
+	public int getWordTagCount(String word, String tag);
+
+	/**
+	 * @return log(P(ti|ti-1)) at [id of ti-1][id of ti], MIN_VALUE where
+	 *         P(ti|ti-1) = 0. Must not be modified.
+	 */
+	public double[][] getLogTransitionTable() throws IllegalStateException;
+
+	/**
+	 * @param minLogTransitionProb
+	 *            Transitions with a lower log(P(ti|ti-1)) are left out.
+	 *            MIN_VALUE only leaves out the transitions with P(ti|ti-1) = 0
+	 * @return For each tag, the previous tags that can transit to it
+	 */
+	public SparseTransitions getSparseTransitions(double minLogTransitionProb) throws IllegalStateException;
+
+	/**
+	 * @return log(P(ti|ti-2,ti-1)) at [id of ti-2 * number of tags + id of
+	 *         ti-1][id of ti], MIN_VALUE where P(ti|ti-2,ti-1) = 0. Must not
+	 *         be modified.
+	 */
+	public double[][] getLogTrigramTable() throws IllegalStateException;
+
+}
@@ -0,0 +1,246 @@
+import java.util.Arrays;
+
+/**
+ * This class runs the Viterbi algorithm with P(ti|ti-2,ti-1) from the trigram
+ * table of the model. A state of the trellis is a pair of tags (ti-1, ti), so
+ * a full trellis has a column of up to numTags^2 states per word and costs
+ * numTags^3 per word. Two kinds of pruning keep it close to the cost of
+ * ViterbiDecoder:
+ *
+ * 1. The tag dictionary. Known words seen at least
+ * TRIGRAM_TAG_DICTIONARY_MIN_COUNT times only get the tags they were seen
+ * with, as in PreparedLine.applyTagDictionary().
+ *
+ * 2. A beam over the pairs of each column. Only the TRIGRAM_BEAM_WIDTH best
+ * pairs, and those within BEAM_THRESHOLD of the best one, are expanded in the
+ * next column.
+ *
+ * Only the live pairs of each column are kept, in increasing order of pair
+ * index, with the index of their best previous pair in the column before.
+ * Ties between previous pairs are broken by the lowest pair index. Lines that
+ * have no path through the pruned trellis are decoded with ViterbiDecoder.
+ *
+ * @author Shao Fei
+ *
+ */
+public class TrigramViterbiDecoder {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	private TrainedStatistics trainedStatistics;
+	private PreparedLine line;
+	private ViterbiDecoder fallbackDecoder;
+	private int beamWidth;
+	private double beamThreshold;
+	private int tagDictionaryMinCount;
+	private int numTags;
+	private int startTagId;
+	private int endTagId;
+	private int quoteTagId;
+
+	// The live pairs of all the columns, one after the other: pair index
+	// id of ti-1 * numTags + id of ti, log statistic, and index of the best
+	// previous pair in the same arrays
+	private int[] pairs;
+	private double[] logStats;
+	private int[] backPointers;
+	// Index of the first pair of each column, and of the end of the last one
+	private int[] columnStarts;
+
+	// Best log statistic and previous pair of each pair index while a column
+	// is computed, and the pair indices that were reached
+	private double[] columnLogStats;
+	private int[] columnBackPointers;
+	private int[] reachedPairs;
+	private double[] sortedLogStats;
+
+	private long numStatesPruned;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained, with trigram counts
+	 * @param settings
+	 *            TRIGRAM_BEAM_WIDTH, BEAM_THRESHOLD and
+	 *            TRIGRAM_TAG_DICTIONARY_MIN_COUNT used to prune the trellis
+	 */
+	public TrigramViterbiDecoder(TrainedStatistics trainedStatistics, DecoderSettings settings) {
+		this.trainedStatistics = trainedStatistics;
+		line = new PreparedLine();
+		fallbackDecoder = new ViterbiDecoder(trainedStatistics);
+		beamWidth = settings.TRIGRAM_BEAM_WIDTH;
+		beamThreshold = settings.BEAM_THRESHOLD;
+		tagDictionaryMinCount = settings.TRIGRAM_TAG_DICTIONARY_MIN_COUNT;
+		numTags = ALL_POS_TAGS.size();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+		pairs = new int[256];
+		logStats = new double[256];
+		backPointers = new int[256];
+		columnStarts = new int[0];
+		columnLogStats = new double[numTags * numTags];
+		Arrays.fill(columnLogStats, Constants.MIN_VALUE);
+		columnBackPointers = new int[numTags * numTags];
+		reachedPairs = new int[numTags * numTags];
+		sortedLogStats = new double[numTags * numTags];
+		numStatesPruned = 0;
+	}
+
+	public long getNumStatesPruned() {
+		return numStatesPruned;
+	}
+
+	/**
+	 * Find the best sequence of tags for the words in a line.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @return The best tag for each word in the line
+	 */
+	public String[] tag(String[] tokens) throws IllegalStateException {
+		int[] path = decode(tokens);
+		String[] tags = new String[path.length];
+		for (int i = 0; i < path.length; i++)
+			tags[i] = ALL_POS_TAGS.getTag(path[i]);
+		return tags;
+	}
+
+	/**
+	 * Find the best sequence of tag ids for the words in a line.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @return The id of the best tag for each word in the line
+	 */
+	public int[] decode(String[] tokens) throws IllegalStateException {
+		line.prepare(trainedStatistics, tokens);
+		if (tagDictionaryMinCount > 0)
+			line.applyTagDictionary(trainedStatistics, tagDictionaryMinCount);
+
+		int numTokens = line.getNumTokens();
+		if (columnStarts.length < numTokens + 1)
+			columnStarts = new int[numTokens + 1];
+		double[][] logTrigram = trainedStatistics.getLogTrigramTable();
+		double[] logEmissions = line.getLogEmissions();
+
+		// Initialisation step, the pairs (<s>, t) of the first word
+		double[] logStartTransition = logTrigram[startTagId * numTags + startTagId];
+		int numReached = 0;
+		int[] firstTags = line.getCandidateTags(0);
+		for (int j = 0; j < line.getNumCandidateTags(0); j++) {
+			int tag = firstTags[j];
+			double logStat = logStartTransition[tag] + logEmissions[tag];
+			if (logStat > Constants.MIN_VALUE) {
+				int pair = startTagId * numTags + tag;
+				columnLogStats[pair] = logStat;
+				columnBackPointers[pair] = -1;
+				reachedPairs[numReached++] = pair;
+			}
+		}
+		columnStarts[0] = 0;
+		columnStarts[1] = keepSurvivors(0, numReached);
+
+		// Recursion step
+		for (int t = 1; t < numTokens; t++) {
+			// The second word has a different emission when the previous tag
+			// is ``
+			double[] logEmissionsAfterQuote = t == 1 ? line.getLogEmissionsAfterQuote() : null;
+			int row = t * numTags;
+			int[] columnTags = line.getCandidateTags(t);
+			int numColumnTags = line.getNumCandidateTags(t);
+			numReached = 0;
+			for (int i = columnStarts[t - 1]; i < columnStarts[t]; i++) {
+				int prevTag = pairs[i] % numTags;
+				double prevLogStat = logStats[i];
+				double[] logTransition = logTrigram[pairs[i]];
+				boolean isAfterQuote = prevTag == quoteTagId && logEmissionsAfterQuote != null;
+				for (int j = 0; j < numColumnTags; j++) {
+					int tag = columnTags[j];
+					double logEmission = isAfterQuote ? logEmissionsAfterQuote[tag] : logEmissions[row + tag];
+					if (logEmission == Constants.MIN_VALUE || logTransition[tag] == Constants.MIN_VALUE)
+						continue;
+					double logStat = prevLogStat + logTransition[tag] + logEmission;
+					int pair = prevTag * numTags + tag;
+					if (columnLogStats[pair] == Constants.MIN_VALUE)
+						reachedPairs[numReached++] = pair;
+					if (logStat > columnLogStats[pair]) {
+						columnLogStats[pair] = logStat;
+						columnBackPointers[pair] = i;
+					}
+				}
+			}
+			columnStarts[t + 1] = keepSurvivors(columnStarts[t], numReached);
+		}
+
+		// Termination step
+		double bestLogStat = Constants.MIN_VALUE;
+		int bestLastPair = -1;
+		for (int i = columnStarts[numTokens - 1]; i < columnStarts[numTokens]; i++) {
+			double logStat = logStats[i] + logTrigram[pairs[i]][endTagId];
+			if (logStat > bestLogStat) {
+				bestLogStat = logStat;
+				bestLastPair = i;
+			}
+		}
+		if (bestLastPair == -1)
+			return fallbackDecoder.decode(line);
+
+		// Back trace from the best last pair
+		int[] path = new int[numTokens];
+		for (int t = numTokens - 1, i = bestLastPair; t >= 0; t--, i = backPointers[i])
+			path[t] = pairs[i] % numTags;
+		return path;
+	}
+
+	/**
+	 * Append the reached pairs of a column that survive the beam, in
+	 * increasing order of pair index, and clear the column.
+	 *
+	 * @param columnStart
+	 *            Index where the pairs of the column are appended
+	 * @param numReached
+	 *            Number of pairs in reachedPairs
+	 * @return The index after the last pair appended
+	 */
+	private int keepSurvivors(int columnStart, int numReached) {
+		double bestLogStat = Constants.MIN_VALUE;
+		for (int i = 0; i < numReached; i++) {
+			double logStat = columnLogStats[reachedPairs[i]];
+			sortedLogStats[i] = logStat;
+			if (logStat > bestLogStat)
+				bestLogStat = logStat;
+		}
+		double cutoff = Math.max(Constants.MIN_VALUE, bestLogStat - beamThreshold);
+		if (beamWidth > 0 && beamWidth < numReached) {
+			// Pairs tied with the last pair in the beam are kept too
+			Arrays.sort(sortedLogStats, 0, numReached);
+			cutoff = Math.max(cutoff, sortedLogStats[numReached - beamWidth]);
+		}
+
+		Arrays.sort(reachedPairs, 0, numReached);
+		ensureCapacity(columnStart + numReached);
+		int end = columnStart;
+		for (int i = 0; i < numReached; i++) {
+			int pair = reachedPairs[i];
+			if (columnLogStats[pair] >= cutoff) {
+				pairs[end] = pair;
+				logStats[end] = columnLogStats[pair];
+				backPointers[end] = columnBackPointers[pair];
+				end++;
+			} else
+				numStatesPruned++;
+			columnLogStats[pair] = Constants.MIN_VALUE;
+		}
+		return end;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (pairs.length >= capacity)
+			return;
+		int newCapacity = Math.max(capacity, pairs.length * 2);
+		pairs = Arrays.copyOf(pairs, newCapacity);
+		logStats = Arrays.copyOf(logStats, newCapacity);
+		backPointers = Arrays.copyOf(backPointers, newCapacity);
+	}
+
+}
@@ -0,0 +1,84 @@
+import java.util.Map;
+
+/**
+ * This class holds the features of the unknown word model of a trained model,
+ * P(cap|t), P(suf|t) for every suffix and P(t), at the id of t. They are
+ * multiplied in the same order as in Model, so that the emissions are the same
+ * to the last bit.
+ *
+ * The tables never change, so an UnknownWordModel can be shared by any number
+ * of threads.
+ *
+ * @author Shao Fei
+ *
+ */
+public final class UnknownWordModel {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+	private static final Suffixes SUFFIXES = new Suffixes();
+
+	private final int numTags;
+	private final int[] wordTagIds;
+	private final double[] capitalProbs;
+	private final Map<String, double[]> suffixProbs;
+	private final double[] tagProbs;
+
+	/**
+	 * The arrays and the map are kept as they are, so they must not be shared
+	 * with anything that modifies them.
+	 *
+	 * @param capitalProbs
+	 *            P(cap|t)
+	 * @param suffixProbs
+	 *            P(suf|t) for every suffix in Suffixes
+	 * @param tagProbs
+	 *            P(t)
+	 */
+	UnknownWordModel(double[] capitalProbs, Map<String, double[]> suffixProbs, double[] tagProbs) {
+		numTags = ALL_POS_TAGS.size();
+		wordTagIds = ALL_POS_TAGS.getWordTagIds();
+		this.capitalProbs = capitalProbs;
+		this.suffixProbs = suffixProbs;
+		this.tagProbs = tagProbs;
+	}
+
+	double[] getCapitalProbs() {
+		return capitalProbs;
+	}
+
+	Map<String, double[]> getSuffixProbs() {
+		return suffixProbs;
+	}
+
+	double[] getTagProbs() {
+		return tagProbs;
+	}
+
+	/**
+	 * Estimate log(P(w|t)) of a word that is not in the vocabulary for all
+	 * tags t at once.
+	 *
+	 * @param word
+	 *            The unknown word w
+	 * @param column
+	 *            Receives log(P(w|t)) at offset + id of t, MIN_VALUE for the
+	 *            tags <s> and </s>
+	 * @param offset
+	 */
+	public void fillLogEmissionColumn(String word, double[] column, int offset) {
+		boolean containsCapital = !word.equals(word.toLowerCase());
+		String[] suffixes = SUFFIXES.getAllSuffixes(word);
+		for (int tag = 0; tag < numTags; tag++)
+			column[offset + tag] = Constants.MIN_VALUE;
+		for (int tag : wordTagIds) {
+			double emissionProb = 1.0;
+			if (containsCapital)
+				emissionProb *= capitalProbs[tag];
+			for (String suffix : suffixes)
+				emissionProb *= suffixProbs.get(suffix)[tag];
+			emissionProb *= tagProbs[tag];
+			column[offset + tag] = Model.toLogProb(emissionProb);
+		}
+	}
+
+}
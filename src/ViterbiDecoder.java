@@ -0,0 +1,506 @@
+import java.util.Arrays;
+
+/**
+ * This class runs the Viterbi algorithm on a line using int ids for the tags
+ * instead of tag strings. The trellis is kept in flat arrays in a
+ * ViterbiWorkspace which is reused for all the lines decoded on the same
+ * thread, so no boxing or hashing is done while filling the trellis.
+ *
+ * Only the states of a column that survive are expanded in the next column.
+ * States whose statistic is MIN_VALUE can never be on the best path and are
+ * always dropped. With the default DecoderSettings, this produces the same
+ * tags as Viterbi. With a beam, states that score too far below the best
+ * state of their column are dropped as well, trading accuracy for speed. With
+ * the tag dictionary, frequent known words only get the states of the tags
+ * they were seen with in the training set, and a line on which no path through
+ * those tags has a probability above 0 is decoded again with all the tags.
+ * With deterministic tags, punctuation and numerals only get the state of
+ * their tag.
+ *
+ * Each state only visits the previous tags that can transit to it, or the
+ * survivors of the previous column if there are fewer of them. Columns where
+ * most of the previous states survive are computed with MaxPlusKernel.
+ *
+ * With a PrefixCache and exact settings, a line resumes decoding after the
+ * longest prefix of tokens whose columns are in the cache.
+ *
+ * @author Shao Fei
+ *
+ */
+public class ViterbiDecoder {
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+	// One workspace per thread, grown to the longest line seen on that thread
+	private static final ThreadLocal<ViterbiWorkspace> WORKSPACE = new ThreadLocal<ViterbiWorkspace>() {
+		@Override
+		protected ViterbiWorkspace initialValue() {
+			return new ViterbiWorkspace();
+		}
+	};
+
+	private TrainedStatistics trainedStatistics;
+	private int beamWidth;
+	private double beamThreshold;
+	private boolean isBeamEnabled;
+	private int tagDictionaryMinCount;
+	private double minLogTransitionProb;
+	// Kept across lines, as the compiled models build the predecessor lists
+	// for a minimum above MIN_VALUE again on every call
+	private SparseTransitions sparseTransitions;
+	private int longLineMinTokens;
+	private int parallelMinTokens;
+	private boolean isDeterministicTagsEnabled;
+	// Created on the first line
+	private DeterministicTags deterministicTags;
+	// Columns of the lines decoded before, null if not used
+	private PrefixCache prefixCache;
+	// Created on the first long line
+	private CheckpointViterbiDecoder longLineDecoder;
+	private ParallelViterbiDecoder parallelDecoder;
+	// Number of states with a statistic above MIN_VALUE that were dropped by
+	// the beam, over all lines decoded so far
+	private long numStatesPruned;
+	// Number of cells in each trellis column, including <s> and </s>
+	private int numTags;
+	private int startTagId;
+	private int endTagId;
+	// Used as the best previous tag when no previous tag gives a better
+	// statistic than MIN_VALUE
+	private int defaultTagId;
+	// Previous tag for which the second word has a different emission
+	private int quoteTagId;
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 */
+	public ViterbiDecoder(TrainedStatistics trainedStatistics) {
+		this(trainedStatistics, new DecoderSettings());
+	}
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 * @param settings
+	 *            Beam, tag dictionary and minimum transition probability
+	 *            used to prune the trellis
+	 */
+	public ViterbiDecoder(TrainedStatistics trainedStatistics, DecoderSettings settings) {
+		this.trainedStatistics = trainedStatistics;
+		beamWidth = settings.BEAM_WIDTH;
+		beamThreshold = settings.BEAM_THRESHOLD;
+		isBeamEnabled = settings.isBeamEnabled();
+		tagDictionaryMinCount = settings.TAG_DICTIONARY_MIN_COUNT;
+		minLogTransitionProb = settings.MIN_LOG_TRANSITION_PROB;
+		longLineMinTokens = settings.LONG_LINE_MIN_TOKENS;
+		parallelMinTokens = settings.PARALLEL_MIN_TOKENS;
+		isDeterministicTagsEnabled = settings.DETERMINISTIC_TAGS;
+		numStatesPruned = 0;
+		numTags = ALL_POS_TAGS.size();
+		startTagId = ALL_POS_TAGS.getId("<s>");
+		endTagId = ALL_POS_TAGS.getId("</s>");
+		defaultTagId = ALL_POS_TAGS.getId("NN");
+		quoteTagId = ALL_POS_TAGS.getId("``");
+	}
+
+	/**
+	 * @param trainedStatistics
+	 *            Model statistics that has been trained
+	 * @param settings
+	 *            Beam, tag dictionary and minimum transition probability
+	 *            used to prune the trellis
+	 * @param prefixCache
+	 *            Cache of trellis columns, possibly shared with other
+	 *            decoders. Only used when the settings are exact.
+	 */
+	public ViterbiDecoder(TrainedStatistics trainedStatistics, DecoderSettings settings, PrefixCache prefixCache) {
+		this(trainedStatistics, settings);
+		if (!settings.isApproximate())
+			this.prefixCache = prefixCache;
+	}
+
+	public long getNumStatesPruned() {
+		return numStatesPruned;
+	}
+
+	/**
+	 * Find the best sequence of tags for the words in a line.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @return The best tag for each word in the line
+	 */
+	public String[] tag(String[] tokens) throws IllegalStateException {
+		int[] path = decode(tokens);
+		String[] tags = new String[path.length];
+		for (int i = 0; i < path.length; i++)
+			tags[i] = ALL_POS_TAGS.getTag(path[i]);
+		return tags;
+	}
+
+	/**
+	 * Find the best sequence of tag ids for the words in a line. Lines with at
+	 * least PARALLEL_MIN_TOKENS words are decoded with ParallelViterbiDecoder,
+	 * and the other lines with at least LONG_LINE_MIN_TOKENS words with
+	 * CheckpointViterbiDecoder.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @return The id of the best tag for each word in the line
+	 */
+	public int[] decode(String[] tokens) throws IllegalStateException {
+		if (parallelMinTokens > 0 && tokens.length >= parallelMinTokens) {
+			if (parallelDecoder == null)
+				parallelDecoder = new ParallelViterbiDecoder(trainedStatistics);
+			return parallelDecoder.decode(tokens);
+		}
+		if (longLineMinTokens > 0 && tokens.length >= longLineMinTokens) {
+			if (longLineDecoder == null)
+				longLineDecoder = new CheckpointViterbiDecoder(trainedStatistics);
+			return longLineDecoder.decode(tokens);
+		}
+		return decode(tokens, null);
+	}
+
+	/**
+	 * Find the best sequence of tags for the words in a line whose tags are
+	 * known for some words. Only the known tag is considered for those words.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @param fixedTags
+	 *            The known tag of each word, null if the tag is not known
+	 * @return The best tag for each word in the line
+	 */
+	public String[] tag(String[] tokens, String[] fixedTags) throws IllegalStateException {
+		int[] fixedTagIds = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			if (fixedTags[i] != null && !ALL_POS_TAGS.isWordTag(fixedTags[i]))
+				throw new IllegalArgumentException("Invalid tag " + fixedTags[i]);
+			fixedTagIds[i] = fixedTags[i] == null ? -1 : ALL_POS_TAGS.getId(fixedTags[i]);
+		}
+		int[] path = decode(tokens, fixedTagIds);
+		String[] tags = new String[path.length];
+		for (int i = 0; i < path.length; i++)
+			tags[i] = ALL_POS_TAGS.getTag(path[i]);
+		return tags;
+	}
+
+	/**
+	 * Find the best sequence of tag ids for the words in a line whose tags
+	 * are known for some words.
+	 *
+	 * @param tokens
+	 *            The words in the line
+	 * @param fixedTagIds
+	 *            Id of the known tag of each word, -1 if the tag is not known.
+	 *            null if no tag is known
+	 * @return The id of the best tag for each word in the line
+	 */
+	public int[] decode(String[] tokens, int[] fixedTagIds) throws IllegalStateException {
+		if (isDeterministicTagsEnabled)
+			fixedTagIds = addDeterministicTags(tokens, fixedTagIds);
+		if (prefixCache != null && fixedTagIds == null)
+			return decodeWithPrefixCache(tokens);
+		PreparedLine line = WORKSPACE.get().getPreparedLine();
+		line.prepare(trainedStatistics, tokens, fixedTagIds);
+		if (tagDictionaryMinCount > 0)
+			line.applyTagDictionary(trainedStatistics, tagDictionaryMinCount);
+		int[] path = decode(line);
+		// The back pointers of states that cannot be reached do not follow the
+		// known tags, so put them back on paths with a probability of 0
+		if (fixedTagIds != null)
+			for (int t = 0; t < path.length; t++)
+				if (fixedTagIds[t] != -1)
+					path[t] = fixedTagIds[t];
+		return path;
+	}
+
+	/**
+	 * Resume decoding after the longest prefix of the line in the cache, and
+	 * add the columns of the line to the cache.
+	 */
+	private int[] decodeWithPrefixCache(String[] tokens) {
+		ViterbiWorkspace workspace = WORKSPACE.get();
+		workspace.ensureCapacity(tokens.length, numTags);
+		double[][] logTransitionTable = trainedStatistics.getLogTransitionTable();
+		int numCachedTokens = prefixCache.lookup(logTransitionTable, tokens, workspace.getScores(),
+				workspace.getBackPointers(), numTags);
+		PreparedLine line = workspace.getPreparedLine();
+		line.prepare(trainedStatistics, tokens, null, numCachedTokens);
+		int[] path = decode(line, numCachedTokens);
+		if (numCachedTokens < tokens.length)
+			prefixCache.store(logTransitionTable, tokens, workspace.getScores(), workspace.getBackPointers(), numTags);
+		return path;
+	}
+
+	/**
+	 * Give their tag from DeterministicTags to the words whose tag is not
+	 * known.
+	 *
+	 * @return The ids of the known tags, null if no tag is known
+	 */
+	private int[] addDeterministicTags(String[] tokens, int[] fixedTagIds) {
+		if (deterministicTags == null)
+			deterministicTags = new DeterministicTags(trainedStatistics);
+		int[] tagIds = new int[tokens.length];
+		int numFixed = deterministicTags.fillTagIds(tokens, tagIds);
+		if (fixedTagIds == null)
+			return numFixed > 0 ? tagIds : null;
+		for (int i = 0; i < tokens.length; i++)
+			if (fixedTagIds[i] != -1)
+				tagIds[i] = fixedTagIds[i];
+		return tagIds;
+	}
+
+	/**
+	 * Find the best sequence of tag ids for a line whose tokens have already
+	 * been resolved against the model.
+	 *
+	 * @param line
+	 *            The prepared line
+	 * @return The id of the best tag for each word in the line
+	 */
+	public int[] decode(PreparedLine line) throws IllegalStateException {
+		return decode(line, 0);
+	}
+
+	/**
+	 * Find the best sequence of tag ids for a prepared line whose first
+	 * columns are already in the trellis of the workspace.
+	 *
+	 * @param line
+	 *            The prepared line
+	 * @param numKnownColumns
+	 *            Number of columns already in the trellis
+	 * @return The id of the best tag for each word in the line
+	 */
+	private int[] decode(PreparedLine line, int numKnownColumns) throws IllegalStateException {
+		int numTokens = line.getNumTokens();
+		ViterbiWorkspace workspace = WORKSPACE.get();
+		workspace.ensureCapacity(numTokens, numTags);
+		double[] scores = workspace.getScores();
+		byte[] backPointers = workspace.getBackPointers();
+		SparseTransitions transitions = getSparseTransitions();
+		double[][] logTransition = transitions.getLogTransitionTable();
+
+		if (numKnownColumns == 0)
+			viterbiFirstWord(line, logTransition, scores, backPointers);
+		viterbiRecursion(line, transitions, workspace, Math.max(1, numKnownColumns));
+		int[] lastTags = line.getCandidateTags(numTokens - 1);
+		int numLastTags = line.getNumCandidateTags(numTokens - 1);
+		int numSurvivors = selectSurvivors(lastTags, numLastTags, scores, (numTokens - 1) * numTags, workspace);
+		int bestLastTag = viterbiEndOfLine(numTokens, logTransition, scores, workspace.getSurvivors(), numSurvivors);
+		if (bestLastTag == -1) {
+			// No path through the candidate tags has a probability above 0. If
+			// the tag dictionary took out the tags of such a path, decode the
+			// line again with all the tags.
+			if (line.hasTagDictionary()) {
+				line.removeTagDictionary();
+				return decode(line, numKnownColumns);
+			}
+			bestLastTag = getDefaultTag(lastTags, numLastTags);
+		}
+
+		// Back trace from the best last tag. Every back pointer is a candidate
+		// of the previous column, so only cells of this line are read.
+		int[] path = new int[numTokens];
+		path[numTokens - 1] = bestLastTag;
+		for (int t = numTokens - 1; t > 0; t--)
+			path[t - 1] = backPointers[t * numTags + path[t]];
+		return path;
+	}
+
+	/**
+	 * @return The predecessor lists for minLogTransitionProb, built again only
+	 *         when the transition table of the model has changed
+	 */
+	private SparseTransitions getSparseTransitions() {
+		if (sparseTransitions == null
+				|| !sparseTransitions.isBuiltFrom(trainedStatistics.getLogTransitionTable(), minLogTransitionProb))
+			sparseTransitions = trainedStatistics.getSparseTransitions(minLogTransitionProb);
+		return sparseTransitions;
+	}
+
+	/**
+	 * Initialisation step to calculate the viterbi statistics for the first
+	 * word in the line.
+	 */
+	private void viterbiFirstWord(PreparedLine line, double[][] logTransition, double[] scores,
+			byte[] backPointers) {
+		double[] logEmissions = line.getLogEmissions();
+		double[] logStartTransition = logTransition[startTagId];
+		int[] firstTags = line.getCandidateTags(0);
+		for (int i = 0; i < line.getNumCandidateTags(0); i++) {
+			int tag = firstTags[i];
+			scores[tag] = logStartTransition[tag] + logEmissions[tag];
+			backPointers[tag] = (byte) startTagId;
+		}
+	}
+
+	/**
+	 * Recursion step to calculate the viterbi statistics for the 2nd word to
+	 * the last word of the line.
+	 */
+	private void viterbiRecursion(PreparedLine line, SparseTransitions transitions, ViterbiWorkspace workspace,
+			int firstWord) {
+		double[][] logTransition = transitions.getLogTransitionTable();
+		double[] scores = workspace.getScores();
+		byte[] backPointers = workspace.getBackPointers();
+		int[] prevSurvivors = workspace.getSurvivors();
+		double[] prevScores = workspace.getSurvivorScores();
+		double[] logEmissions = line.getLogEmissions();
+		for (int t = firstWord; t < line.getNumTokens(); t++) {
+			// The second word has a different emission when the previous tag
+			// is ``
+			double[] logEmissionsAfterQuote = t == 1 ? line.getLogEmissionsAfterQuote() : null;
+
+			int prevRow = (t - 1) * numTags;
+			int row = t * numTags;
+			int[] prevColumnTags = line.getCandidateTags(t - 1);
+			int numPrevColumnTags = line.getNumCandidateTags(t - 1);
+			int numPrevSurvivors = selectSurvivors(prevColumnTags, numPrevColumnTags, scores, prevRow, workspace);
+			int defaultPrevTag = getDefaultTag(prevColumnTags, numPrevColumnTags);
+			int[] columnTags = line.getCandidateTags(t);
+			int numColumnTags = line.getNumCandidateTags(t);
+			if (MaxPlusKernel.isEnabled() && logEmissionsAfterQuote == null && numPrevSurvivors * 2 >= numTags) {
+				MaxPlusKernel.computeColumn(prevScores, transitions.getLogTransitionTableByTag(), columnTags,
+						numColumnTags, logEmissions, row, scores, backPointers, row, numTags, defaultPrevTag);
+				continue;
+			}
+			for (int j = 0; j < numColumnTags; j++) {
+				int tag = columnTags[j];
+				double logEmission = logEmissions[row + tag];
+				double logEmissionAfterQuote = logEmissionsAfterQuote == null ? logEmission
+						: logEmissionsAfterQuote[tag];
+				double bestStateStat = Constants.MIN_VALUE;
+				int bestPrevState = defaultPrevTag;
+				// No previous tag can give a better statistic than MIN_VALUE
+				// if the word cannot be emitted by the tag
+				if (logEmission != Constants.MIN_VALUE || logEmissionAfterQuote != Constants.MIN_VALUE) {
+					// Visit the shorter of the survivors and the predecessors.
+					// Both are in increasing order of tag id, and a survivor
+					// that is not a predecessor or a predecessor that is not a
+					// survivor gives MIN_VALUE, so both give the same result.
+					int[] predecessors = transitions.getPredecessorTagIds(tag);
+					boolean visitSurvivors = numPrevSurvivors <= predecessors.length;
+					int numPrevTags = visitSurvivors ? numPrevSurvivors : predecessors.length;
+					for (int i = 0; i < numPrevTags; i++) {
+						int prevTag = visitSurvivors ? prevSurvivors[i] : predecessors[i];
+						double candidateStateStat = prevScores[prevTag] + logTransition[prevTag][tag]
+								+ (prevTag == quoteTagId ? logEmissionAfterQuote : logEmission);
+						if (candidateStateStat > bestStateStat) {
+							bestStateStat = candidateStateStat;
+							bestPrevState = prevTag;
+						}
+					}
+				}
+				scores[row + tag] = bestStateStat;
+				backPointers[row + tag] = (byte) bestPrevState;
+			}
+		}
+	}
+
+	/**
+	 * Termination step to determine the best last tag from the transitions to
+	 * the end of line tag </s>.
+	 *
+	 * Sums involving a MIN_VALUE never exceed MIN_VALUE, so plain addition
+	 * gives the same maximums as Viterbi.calculateStats.
+	 *
+	 * @return the id of the best last tag, -1 if no tag gives a statistic
+	 *         above MIN_VALUE
+	 */
+	private int viterbiEndOfLine(int numTokens, double[][] logTransition, double[] scores, int[] survivors,
+			int numSurvivors) {
+		int lastRow = (numTokens - 1) * numTags;
+		double bestLastStateStat = Constants.MIN_VALUE;
+		int bestPrevState = -1;
+		for (int i = 0; i < numSurvivors; i++) {
+			int prevTag = survivors[i];
+			double candidateStateStat = scores[lastRow + prevTag] + logTransition[prevTag][endTagId];
+			if (candidateStateStat > bestLastStateStat) {
+				bestLastStateStat = candidateStateStat;
+				bestPrevState = prevTag;
+			}
+		}
+		return bestPrevState;
+	}
+
+	/**
+	 * The best tag of a column, or the best previous tag of a state, when no
+	 * tag gives a statistic above MIN_VALUE. It is NN as in Viterbi, unless NN
+	 * is not a candidate of the column, in which case the first candidate is
+	 * taken so that the back trace never reads a cell this line did not fill
+	 * in.
+	 *
+	 * @param columnTags
+	 *            The candidate tags of the column, in increasing order
+	 * @param numColumnTags
+	 *            The number of candidate tags
+	 */
+	private int getDefaultTag(int[] columnTags, int numColumnTags) {
+		return Arrays.binarySearch(columnTags, 0, numColumnTags, defaultTagId) >= 0 ? defaultTagId : columnTags[0];
+	}
+
+	/**
+	 * Select the states of a trellis column that are expanded in the next
+	 * column. The survivors are kept in increasing order of tag id so that
+	 * ties between previous tags are broken as in Viterbi. The statistics of
+	 * the survivors are copied to the survivor scores of the workspace.
+	 *
+	 * @param columnTags
+	 *            The candidate tags of the column, the other cells of the
+	 *            column are not filled in
+	 * @param numColumnTags
+	 *            The number of candidate tags
+	 * @param scores
+	 *            The trellis
+	 * @param row
+	 *            Start of the column in the trellis
+	 * @param workspace
+	 *            Receives the survivors
+	 * @return the number of survivors
+	 */
+	private int selectSurvivors(int[] columnTags, int numColumnTags, double[] scores, int row,
+			ViterbiWorkspace workspace) {
+		int[] survivors = workspace.getSurvivors();
+		double cutoff = Constants.MIN_VALUE;
+		if (isBeamEnabled) {
+			double bestStateStat = Constants.MIN_VALUE;
+			double[] columnScores = workspace.getColumnScores();
+			int numLiveStates = 0;
+			for (int i = 0; i < numColumnTags; i++) {
+				double stateStat = scores[row + columnTags[i]];
+				if (stateStat > Constants.MIN_VALUE) {
+					columnScores[numLiveStates++] = stateStat;
+					if (stateStat > bestStateStat)
+						bestStateStat = stateStat;
+				}
+			}
+			cutoff = Math.max(cutoff, bestStateStat - beamThreshold);
+			if (beamWidth > 0 && beamWidth < numLiveStates) {
+				// States tied with the last state in the beam are kept too
+				Arrays.sort(columnScores, 0, numLiveStates);
+				cutoff = Math.max(cutoff, columnScores[numLiveStates - beamWidth]);
+			}
+		}
+
+		double[] survivorScores = workspace.getSurvivorScores();
+		Arrays.fill(survivorScores, 0, numTags, Constants.MIN_VALUE);
+		int numSurvivors = 0;
+		for (int i = 0; i < numColumnTags; i++) {
+			int tag = columnTags[i];
+			double stateStat = scores[row + tag];
+			if (stateStat > Constants.MIN_VALUE) {
+				if (stateStat >= cutoff) {
+					survivors[numSurvivors++] = tag;
+					survivorScores[tag] = stateStat;
+				} else
+					numStatesPruned++;
+			}
+		}
+		return numSurvivors;
+	}
+
+}
@@ -0,0 +1,83 @@
+
+/**
+ * This class holds the flat trellis used by ViterbiDecoder. The trellis is
+ * stored row by row, one row of numTags cells per word in the line, and is
+ * only ever grown so that it can be reused for every line decoded on the same
+ * thread.
+ *
+ * @author Shao Fei
+ *
+ */
+public class ViterbiWorkspace {
+
+	// log(viterbi(s,t)) for word t and tag s, at index t * numTags + s
+	private double[] scores;
+	// Id of the best previous tag for word t and tag s, at index t * numTags +
+	// s. Tag ids are small enough to fit in a byte.
+	private byte[] backPointers;
+	// Ids of the states kept in the last computed trellis column
+	private int[] survivors;
+	// Scratch space to rank the states of a trellis column
+	private double[] columnScores;
+	// Statistics of the survivors of the last computed trellis column at the
+	// id of their tag, MIN_VALUE for the other tags
+	private double[] survivorScores;
+	// The tokens of the line being decoded, resolved against the model
+	private PreparedLine preparedLine;
+
+	public ViterbiWorkspace() {
+		scores = new double[0];
+		backPointers = new byte[0];
+		survivors = new int[0];
+		columnScores = new double[0];
+		survivorScores = new double[0];
+		preparedLine = new PreparedLine();
+	}
+
+	/**
+	 * Grow the trellis if it cannot hold a line of numTokens words. The
+	 * content of the trellis is not cleared.
+	 *
+	 * @param numTokens
+	 *            Number of words in the line to be decoded
+	 * @param numTags
+	 *            Number of tags in each trellis column
+	 */
+	public void ensureCapacity(int numTokens, int numTags) {
+		int numCells = numTokens * numTags;
+		if (scores.length < numCells) {
+			scores = new double[numCells];
+			backPointers = new byte[numCells];
+		}
+		if (survivors.length < numTags) {
+			survivors = new int[numTags];
+			columnScores = new double[numTags];
+			survivorScores = new double[numTags];
+		}
+	}
+
+	public double[] getScores() {
+		return scores;
+	}
+
+	public byte[] getBackPointers() {
+		return backPointers;
+	}
+
+	public int[] getSurvivors() {
+		return survivors;
+	}
+
+	public double[] getColumnScores() {
+		return columnScores;
+	}
+
+	public double[] getSurvivorScores() {
+		return survivorScores;
+	}
+
+	public PreparedLine getPreparedLine() {
+		return preparedLine;
+	}
+
+}
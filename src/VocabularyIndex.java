@@ -0,0 +1,233 @@
+import java.io.Serializable;
+
+/**
+ * This class maps the words of the vocabulary to their dense ids with a
+ * minimal perfect hash, built once and never changed.
+ *
+ * The words are hashed into buckets of a few words each. Starting from the
+ * largest bucket, each bucket is given the first displacement that sends all
+ * its words to slots that are still free, so the n words fill the n slots
+ * exactly. The last buckets have few free slots to choose from, so building
+ * the index takes about n log(n) tries.
+ *
+ * A lookup hashes the word once, reads the displacement of its bucket and
+ * goes straight to its slot. Each slot keeps the id of its word and a
+ * fingerprint of its hash in one long, and the fingerprint rejects almost
+ * every word that is not in the vocabulary without looking at its characters.
+ * A matching fingerprint is confirmed by comparing the characters with the
+ * word of the slot.
+ *
+ * The characters of all the words are kept in one array, so the index is a
+ * few arrays of primitives, and looking up a word allocates nothing and
+ * accepts any CharSequence.
+ *
+ * @author Shao Fei
+ *
+ */
+public final class VocabularyIndex implements Serializable {
+
+	private static final long serialVersionUID = -3310846716935247151L;
+
+	// Average number of words per bucket
+	private static final int BUCKET_SIZE = 4;
+
+	private final long seed;
+	// The characters of word id w are from wordStarts[w] to wordStarts[w + 1]
+	// - 1 in chars
+	private final char[] chars;
+	private final int[] wordStarts;
+	// Displacement of each bucket
+	private final int[] displacements;
+	// Low 32 bits of the hash of the word in each slot, in the high half, and
+	// the id of the word
+	private final long[] slots;
+
+	/**
+	 * @param words
+	 *            The words, in the order of their ids. Must be distinct.
+	 */
+	public VocabularyIndex(String[] words) {
+		int numWords = words.length;
+		wordStarts = new int[numWords + 1];
+		for (int id = 0; id < numWords; id++)
+			wordStarts[id + 1] = wordStarts[id] + words[id].length();
+		chars = new char[wordStarts[numWords]];
+		for (int id = 0; id < numWords; id++)
+			words[id].getChars(0, words[id].length(), chars, wordStarts[id]);
+
+		displacements = new int[Math.max(1, (numWords + BUCKET_SIZE - 1) / BUCKET_SIZE)];
+		slots = new long[numWords];
+		// Two different words only get the same 64-bit hash with a
+		// negligible chance, but if they do no displacement can separate them
+		long currentSeed = 0;
+		while (!place(words, currentSeed))
+			currentSeed++;
+		seed = currentSeed;
+	}
+
+	/**
+	 * Find a displacement for every bucket with the hashes of a seed.
+	 *
+	 * @return false if a bucket could not be placed
+	 */
+	private boolean place(String[] words, long seed) {
+		int numWords = words.length;
+		int numBuckets = displacements.length;
+		long[] hashes = new long[numWords];
+		for (int id = 0; id < numWords; id++)
+			hashes[id] = hash(words[id], seed);
+
+		// Group the ids by bucket, then order the buckets from the largest
+		int[] bucketStarts = new int[numBuckets + 1];
+		for (int id = 0; id < numWords; id++)
+			bucketStarts[bucketOf(hashes[id], numBuckets) + 1]++;
+		int maxBucketSize = 0;
+		for (int bucket = 0; bucket < numBuckets; bucket++) {
+			maxBucketSize = Math.max(maxBucketSize, bucketStarts[bucket + 1]);
+			bucketStarts[bucket + 1] += bucketStarts[bucket];
+		}
+		int[] bucketIds = new int[numWords];
+		int[] bucketEnds = new int[numBuckets];
+		System.arraycopy(bucketStarts, 0, bucketEnds, 0, numBuckets);
+		for (int id = 0; id < numWords; id++)
+			bucketIds[bucketEnds[bucketOf(hashes[id], numBuckets)]++] = id;
+		int[] sizeStarts = new int[maxBucketSize + 2];
+		for (int bucket = 0; bucket < numBuckets; bucket++)
+			sizeStarts[maxBucketSize - (bucketStarts[bucket + 1] - bucketStarts[bucket]) + 1]++;
+		for (int size = 0; size <= maxBucketSize; size++)
+			sizeStarts[size + 1] += sizeStarts[size];
+		int[] bucketOrder = new int[numBuckets];
+		for (int bucket = 0; bucket < numBuckets; bucket++)
+			bucketOrder[sizeStarts[maxBucketSize - (bucketStarts[bucket + 1] - bucketStarts[bucket])]++] = bucket;
+
+		// The last bucket finds the last free slot after about numWords tries
+		int maxDisplacement = (int) Math.min(Integer.MAX_VALUE, 64L * numWords + 1024);
+		boolean[] isTaken = new boolean[numWords];
+		int[] bucketSlots = new int[maxBucketSize];
+		for (int bucket : bucketOrder) {
+			int start = bucketStarts[bucket];
+			int size = bucketStarts[bucket + 1] - start;
+			if (size == 0)
+				break;
+			int displacement = 0;
+			while (!fits(hashes, bucketIds, start, size, displacement, isTaken, bucketSlots))
+				if (++displacement == maxDisplacement)
+					return false;
+			displacements[bucket] = displacement;
+			for (int i = 0; i < size; i++) {
+				int id = bucketIds[start + i];
+				isTaken[bucketSlots[i]] = true;
+				slots[bucketSlots[i]] = (hashes[id] << 32) | id;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a displacement sends all the words of a bucket to
+	 * distinct free slots, which are left in bucketSlots.
+	 */
+	private static boolean fits(long[] hashes, int[] bucketIds, int start, int size, int displacement,
+			boolean[] isTaken, int[] bucketSlots) {
+		for (int i = 0; i < size; i++) {
+			int slot = slotOf(hashes[bucketIds[start + i]], displacement, isTaken.length);
+			if (isTaken[slot])
+				return false;
+			for (int j = 0; j < i; j++)
+				if (bucketSlots[j] == slot)
+					return false;
+			bucketSlots[i] = slot;
+		}
+		return true;
+	}
+
+	// The lookup is also done by MappedModel on the same arrays in
+	// model_file
+
+	static long hash(CharSequence word, long seed) {
+		// FNV-1a over the characters, then the finalizer of MurmurHash3
+		long h = 0xcbf29ce484222325L ^ seed;
+		for (int i = 0; i < word.length(); i++)
+			h = (h ^ word.charAt(i)) * 0x100000001b3L;
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	// The bucket and the slot come from the high 32 bits of a hash, scaled to
+	// [0, n) by a multiplication instead of a division. The fingerprint is
+	// the low 32 bits
+	static int bucketOf(long hash, int numBuckets) {
+		return (int) (((hash >>> 32) * numBuckets) >>> 32);
+	}
+
+	static int slotOf(long hash, int displacement, int numSlots) {
+		return (int) (((mix(hash + displacement * 0x9e3779b97f4a7c15L) >>> 32) * numSlots) >>> 32);
+	}
+
+	// The arrays as they are, for ModelFileWriter
+
+	long getSeed() {
+		return seed;
+	}
+
+	char[] getChars() {
+		return chars;
+	}
+
+	int[] getWordStarts() {
+		return wordStarts;
+	}
+
+	int[] getDisplacements() {
+		return displacements;
+	}
+
+	long[] getSlots() {
+		return slots;
+	}
+
+	/**
+	 * @return The number of words
+	 */
+	public int size() {
+		return slots.length;
+	}
+
+	/**
+	 * @param word
+	 * @return The id of the word, or -1 if the word is not in the vocabulary
+	 */
+	public int getId(CharSequence word) {
+		int numWords = slots.length;
+		if (numWords == 0)
+			return -1;
+		long hash = hash(word, seed);
+		long slot = slots[slotOf(hash, displacements[bucketOf(hash, displacements.length)], numWords)];
+		if ((int) (slot >>> 32) != (int) hash)
+			return -1;
+		int id = (int) slot;
+		int start = wordStarts[id];
+		int length = wordStarts[id + 1] - start;
+		if (word.length() != length)
+			return -1;
+		for (int i = 0; i < length; i++)
+			if (word.charAt(i) != chars[start + i])
+				return -1;
+		return id;
+	}
+
+	/**
+	 * @param id
+	 *            Id of a word
+	 * @return The word
+	 */
+	public String getWord(int id) {
+		return new String(chars, wordStarts[id], wordStarts[id + 1] - wordStarts[id]);
+	}
+
+}
@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * This class stores C(w,t) word by word. Each word of the vocabulary has a
+ * row, at its id in VocabularyIndex, with the ids of the tags it was seen
+ * with, in increasing order, and their counts. The rows of all the words are
+ * kept one after the other in two flat arrays, so the whole table is a few
+ * arrays of primitives instead of a map per tag holding every word with a
+ * boxed count.
+ *
+ * Once the id of a word is known, all its counts are next to each other. C(w)
+ * and the number of words seen with each tag are computed from the rows.
+ *
+ * @author Shao Fei
+ *
+ */
+public class WordTagCounts implements Serializable {
+
+	private static final long serialVersionUID = 2583371934226460978L;
+
+	private static final POSTags ALL_POS_TAGS = new POSTags();
+
+	// The row of word id w is from rowStarts[w] to rowStarts[w + 1] - 1
+	private int[] rowStarts;
+	private byte[] tagIds;
+	private int[] counts;
+
+	// The ids of the words seen with each tag, tag by tag, in the order of
+	// the map they were counted in. The words of tag id t are from
+	// tagWordStarts[t] to tagWordStarts[t + 1] - 1. The sums over the words
+	// of a tag follow this order, so that they round as they did when C(w,t)
+	// was kept in a map per tag
+	transient private int[] tagWordStarts;
+	transient private int[] tagWordIds;
+
+	// C(w) for each word id
+	transient private int[] wordCounts;
+	// |{w: C(w,t) > 0}| for each tag id
+	transient private int[] numWordsByTag;
+
+	/**
+	 * @param vocabularyIndex
+	 *            The ids of the words
+	 * @param tagAndWordCount
+	 *            C(w,t) keyed by t and then by w
+	 */
+	public WordTagCounts(VocabularyIndex vocabularyIndex, Map<String, Map<String, Integer>> tagAndWordCount) {
+		int numWords = vocabularyIndex.size();
+
+		// Count the tags of each word first, then fill in the rows with the
+		// tags in increasing order of id
+		int[] wordTagIds = ALL_POS_TAGS.getWordTagIds();
+		rowStarts = new int[numWords + 1];
+		tagWordStarts = new int[ALL_POS_TAGS.size() + 1];
+		for (int tagId : wordTagIds) {
+			tagWordStarts[tagId + 1] = tagAndWordCount.get(ALL_POS_TAGS.getTag(tagId)).size();
+			Iterator<String> wordIter = tagAndWordCount.get(ALL_POS_TAGS.getTag(tagId)).keySet().iterator();
+			while (wordIter.hasNext())
+				rowStarts[vocabularyIndex.getId(wordIter.next()) + 1]++;
+		}
+		for (int id = 0; id < numWords; id++)
+			rowStarts[id + 1] += rowStarts[id];
+		tagIds = new byte[rowStarts[numWords]];
+		counts = new int[rowStarts[numWords]];
+		int[] rowEnds = new int[numWords];
+		System.arraycopy(rowStarts, 0, rowEnds, 0, numWords);
+		for (int tagId = 0; tagId < ALL_POS_TAGS.size(); tagId++)
+			tagWordStarts[tagId + 1] += tagWordStarts[tagId];
+		tagWordIds = new int[tagIds.length];
+		for (int tagId : wordTagIds) {
+			Map<String, Integer> wordCounts = tagAndWordCount.get(ALL_POS_TAGS.getTag(tagId));
+			Iterator<String> wordIter = wordCounts.keySet().iterator();
+			int tagWordEnd = tagWordStarts[tagId];
+			while (wordIter.hasNext()) {
+				String word = wordIter.next();
+				int id = vocabularyIndex.getId(word);
+				tagIds[rowEnds[id]] = (byte) tagId;
+				counts[rowEnds[id]] = wordCounts.get(word);
+				rowEnds[id]++;
+				tagWordIds[tagWordEnd++] = id;
+			}
+		}
+		computeTotals();
+	}
+
+	private void computeTotals() {
+		wordCounts = new int[size()];
+		numWordsByTag = new int[ALL_POS_TAGS.size()];
+		for (int id = 0; id < wordCounts.length; id++) {
+			for (int i = rowStarts[id]; i < rowStarts[id + 1]; i++) {
+				wordCounts[id] += counts[i];
+				numWordsByTag[tagIds[i]]++;
+			}
+		}
+	}
+
+	/**
+	 * List the words of each tag in increasing order of id, when the order
+	 * they were counted in is not known
+	 */
+	private void indexWordsByTag() {
+		int numTags = ALL_POS_TAGS.size();
+		tagWordStarts = new int[numTags + 1];
+		for (int i = 0; i < tagIds.length; i++)
+			tagWordStarts[tagIds[i] + 1]++;
+		for (int tagId = 0; tagId < numTags; tagId++)
+			tagWordStarts[tagId + 1] += tagWordStarts[tagId];
+		tagWordIds = new int[tagIds.length];
+		int[] tagWordEnds = new int[numTags];
+		System.arraycopy(tagWordStarts, 0, tagWordEnds, 0, numTags);
+		for (int id = 0; id < size(); id++)
+			for (int i = rowStarts[id]; i < rowStarts[id + 1]; i++)
+				tagWordIds[tagWordEnds[tagIds[i]]++] = id;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		computeTotals();
+		indexWordsByTag();
+	}
+
+	/**
+	 * @return The number of words
+	 */
+	public int size() {
+		return rowStarts.length - 1;
+	}
+
+	/**
+	 * @param vocabularyId
+	 *            Id of a word w
+	 * @return C(w)
+	 */
+	public int getWordCount(int vocabularyId) {
+		return wordCounts[vocabularyId];
+	}
+
+	/**
+	 * @param vocabularyId
+	 *            Id of a word w
+	 * @return |{t: C(w,t) > 0}|
+	 */
+	public int getNumTags(int vocabularyId) {
+		return rowStarts[vocabularyId + 1] - rowStarts[vocabularyId];
+	}
+
+	/**
+	 * @param tagId
+	 *            Id of a tag t
+	 * @return |{w: C(w,t) > 0}|
+	 */
+	public int getNumWords(int tagId) {
+		return numWordsByTag[tagId];
+	}
+
+	/**
+	 * @return |{(w,t): C(w,t) > 0}|
+	 */
+	public int getNumPairs() {
+		return counts.length;
+	}
+
+	/**
+	 * @param vocabularyId
+	 *            Id of a word w
+	 * @param tagId
+	 *            Id of a tag t
+	 * @return C(w,t)
+	 */
+	public int getCount(int vocabularyId, int tagId) {
+		for (int i = rowStarts[vocabularyId]; i < rowStarts[vocabularyId + 1] && tagIds[i] <= tagId; i++)
+			if (tagIds[i] == tagId)
+				return counts[i];
+		return 0;
+	}
+
+	/**
+	 * @param vocabularyId
+	 *            Id of a word w
+	 * @return Index of the first entry of the row of w
+	 */
+	public int getRowStart(int vocabularyId) {
+		return rowStarts[vocabularyId];
+	}
+
+	/**
+	 * @param vocabularyId
+	 *            Id of a word w
+	 * @return Index after the last entry of the row of w
+	 */
+	public int getRowEnd(int vocabularyId) {
+		return rowStarts[vocabularyId + 1];
+	}
+
+	/**
+	 * @param index
+	 *            Index of an entry of a row
+	 * @return The id of the tag t of the entry
+	 */
+	public int getTagId(int index) {
+		return tagIds[index];
+	}
+
+	/**
+	 * @param index
+	 *            Index of an entry of a row
+	 * @return C(w,t) of the entry
+	 */
+	public int getCountAt(int index) {
+		return counts[index];
+	}
+
+	/**
+	 * @param tagId
+	 *            Id of a tag t
+	 * @return Index of the first word seen with t
+	 */
+	public int getTagWordStart(int tagId) {
+		return tagWordStarts[tagId];
+	}
+
+	/**
+	 * @param tagId
+	 *            Id of a tag t
+	 * @return Index after the last word seen with t
+	 */
+	public int getTagWordEnd(int tagId) {
+		return tagWordStarts[tagId + 1];
+	}
+
+	/**
+	 * @param index
+	 *            Index of a word seen with a tag
+	 * @return The id of the word, in the order the words of the tag were
+	 *         counted in
+	 */
+	public int getTagWordId(int index) {
+		return tagWordIds[index];
+	}
+
+}
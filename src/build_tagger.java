@@ -1,14 +1,13 @@
 
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 
 public class build_tagger {
 
 	public static void main(String[] args) {
 		
-		if(args.length != 3) {
+		// An optional 4th argument makes the model second-order
+		if (args.length != 3 && !(args.length == 4 && args[3].equals("-trigram"))) {
 			System.out.println("Invalid arguments to program");
 			System.exit(-1);
 		}
@@ -20,14 +19,14 @@ public class build_tagger {
 		try {
 			// Learn from the training set and dev set
 			Model modelStats = new ModelFinal(trainingSetFileName);
+			modelStats.setSecondOrder(args.length == 4);
 			Learner learn = new Learner(modelStats, developmentSetFileName, "final_model");
 			learn.learnAndTune();
 
-			// Save model statistics in model_file
+			// Save the compiled tables in model_file, which run_tagger maps
+			// into memory
 			System.out.println("Writing model_file...");
-			ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(modelFileName));
-			out.writeObject(modelStats);
-			out.close();
+			ModelFileWriter.write(modelStats.compile(), modelFileName);
 
 		} catch (NoSuchFieldException e) {
 			System.out.println("POS tag found in training set is not a recognized tag. "
@@ -9,7 +9,7 @@ public class run_tagger {
 
 	public static void main(String[] args) {
 		
-		if(args.length != 3) {
+		if(args.length < 3) {
 			System.out.println("Invalid arguments to program");
 			System.exit(-1);
 		}
@@ -17,25 +17,112 @@ public class run_tagger {
 		String untaggedFileName = args[0];
 		String modelFileName = args[1];
 		String taggedFileName = args[2];
+
+		// Optional decoder settings after the 3 file names. A value out of
+		// range is rejected like one that is not a number
+		DecoderSettings decoderSettings = new DecoderSettings();
+		try {
+			for (int i = 3; i < args.length; i++) {
+				if (args[i].equals("-beam") && i + 1 < args.length)
+					decoderSettings.BEAM_WIDTH = parseInt(args[++i], 0);
+				else if (args[i].equals("-beam-threshold") && i + 1 < args.length)
+					decoderSettings.BEAM_THRESHOLD = parseDouble(args[++i], 0);
+				else if (args[i].equals("-tag-dictionary") && i + 1 < args.length)
+					decoderSettings.TAG_DICTIONARY_MIN_COUNT = parseInt(args[++i], 0);
+				else if (args[i].equals("-min-transition") && i + 1 < args.length) {
+					// A probability, so only values in (0, 1] have a log
+					double minTransitionProb = Double.parseDouble(args[++i]);
+					if (!(minTransitionProb > 0 && minTransitionProb <= 1))
+						throw new NumberFormatException("Not a probability: " + minTransitionProb);
+					decoderSettings.MIN_LOG_TRANSITION_PROB = Math.log(minTransitionProb);
+				}
+				else if (args[i].equals("-batch") && i + 1 < args.length)
+					decoderSettings.BATCH_SIZE = parseInt(args[++i], 0);
+				else if (args[i].equals("-long-line") && i + 1 < args.length)
+					decoderSettings.LONG_LINE_MIN_TOKENS = parseInt(args[++i], 0);
+				else if (args[i].equals("-trigram-beam") && i + 1 < args.length)
+					decoderSettings.TRIGRAM_BEAM_WIDTH = parseInt(args[++i], 0);
+				else if (args[i].equals("-trigram-tag-dictionary") && i + 1 < args.length)
+					decoderSettings.TRIGRAM_TAG_DICTIONARY_MIN_COUNT = parseInt(args[++i], 0);
+				else if (args[i].equals("-astar"))
+					decoderSettings.A_STAR = true;
+				else if (args[i].equals("-deadline") && i + 1 < args.length)
+					decoderSettings.DEADLINE_MILLIS = parseLong(args[++i], 0);
+				else if (args[i].equals("-prefix-cache") && i + 1 < args.length)
+					decoderSettings.PREFIX_CACHE_SIZE = parseInt(args[++i], 0);
+				else if (args[i].equals("-deterministic-tags"))
+					decoderSettings.DETERMINISTIC_TAGS = true;
+				else if (args[i].equals("-pretagged"))
+					decoderSettings.PRETAGGED = true;
+				else if (args[i].equals("-k-best") && i + 1 < args.length)
+					decoderSettings.K_BEST = parseInt(args[++i], 1);
+				else if (args[i].equals("-parallel") && i + 1 < args.length)
+					decoderSettings.PARALLEL_MIN_TOKENS = parseInt(args[++i], 0);
+				else if (args[i].equals("-stream") && i + 1 < args.length) {
+					decoderSettings.STREAMING = true;
+					decoderSettings.MAX_LOOKAHEAD = parseInt(args[++i], 0);
+				}
+				else {
+					System.out.println("Invalid arguments to program");
+					System.exit(-1);
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid arguments to program");
+			System.exit(-1);
+		}
 		
 		try {
 			
-			// Obtain Learner from saved file
+			// Obtain the model statistics from saved file. model_file written by
+			// build_tagger is mapped into memory, and a serialized Model written
+			// before is compiled once, so that the decoders of all the threads
+			// read the same immutable tables
 			System.out.println("Reading model statistics from \"" + modelFileName + "\"...");
-			ObjectInputStream in = new ObjectInputStream(new FileInputStream(modelFileName));
-			Model modelStats = (ModelFinal) in.readObject();
-			in.close();
+			TrainedStatistics modelStats;
+			if (MappedModel.isModelFile(modelFileName))
+				modelStats = new MappedModel(modelFileName);
+			else {
+				ObjectInputStream in = new ObjectInputStream(new FileInputStream(modelFileName));
+				modelStats = ((ModelFinal) in.readObject()).compile();
+				in.close();
+			}
 			
+			// Tagger decodes with one decoder, so a setting that it would not
+			// apply is rejected rather than ignored
+			if (decoderSettings.getIgnoredSetting(modelStats.isSecondOrder()) != null) {
+				System.out.println("Invalid arguments to program");
+				System.exit(-1);
+			}
+
 			// Start tagging
-			System.out.println("Tagging \"" + untaggedFileName + "\"...");
+			System.out.println("Tagging \"" + untaggedFileName + "\"..."
+					+ (modelStats.isSecondOrder() ? " (second-order model)" : "")
+					+ (decoderSettings.isApproximate(modelStats.isSecondOrder()) ? " (pruned)" : ""));
 			Tagger tag = new Tagger(modelStats, untaggedFileName, taggedFileName);
+			tag.setDecoderSettings(decoderSettings);
 			tag.tag();
 			System.out.println("All lines successfully tagged! Tagged file: \"" + taggedFileName + "\"");
+			if (decoderSettings.isBeamEnabled()
+					|| (modelStats.isSecondOrder() && decoderSettings.isApproximate(true)))
+				System.out.println("States pruned by beam: " + tag.getNumStatesPruned());
+			if (decoderSettings.A_STAR && tag.getNumLinesSearched() > 0)
+				System.out.println("States expanded by A*: " + tag.getNumStatesExpanded() + ", per line: "
+						+ (double) tag.getNumStatesExpanded() / tag.getNumLinesSearched());
+			if (decoderSettings.DEADLINE_MILLIS > 0)
+				System.out.println("Lines tagged by most frequent tag: "
+						+ tag.getNumLines(AnytimeDecoder.LEVEL_MOST_FREQUENT_TAG) + ", narrow beam: "
+						+ tag.getNumLines(AnytimeDecoder.LEVEL_NARROW_BEAM) + ", wide beam: "
+						+ tag.getNumLines(AnytimeDecoder.LEVEL_WIDE_BEAM) + ", exact: "
+						+ tag.getNumLines(AnytimeDecoder.LEVEL_EXACT));
+			if (tag.getPrefixCache() != null)
+				System.out.println("Prefix cache hit rate: " + tag.getPrefixCache().getHitRate() + ", columns reused: "
+						+ tag.getPrefixCache().getNumColumnsReused());
 			
 		} catch (FileNotFoundException e) {
 			System.out.println(modelFileName + " not found!");
 		} catch (IOException e) {
-			System.out.println("I/O Exception when writing \"" + taggedFileName + "\"");
+			System.out.println("I/O Exception when reading \"" + modelFileName + "\": " + e.getMessage());
 		} catch (ClassNotFoundException e) {
 			e.printStackTrace();
 		} catch (IllegalStateException e) {
@@ -43,4 +130,52 @@ public class run_tagger {
 		}
 	}
 
+	/**
+	 * @param value
+	 *            The value of an option
+	 * @param min
+	 *            The lowest valid value
+	 * @return The value as an int
+	 * @throws NumberFormatException
+	 *             If the value is not an int or is below min
+	 */
+	private static int parseInt(String value, int min) throws NumberFormatException {
+		int number = Integer.parseInt(value);
+		if (number < min)
+			throw new NumberFormatException(value + " is below " + min);
+		return number;
+	}
+
+	/**
+	 * @param value
+	 *            The value of an option
+	 * @param min
+	 *            The lowest valid value
+	 * @return The value as a long
+	 * @throws NumberFormatException
+	 *             If the value is not a long or is below min
+	 */
+	private static long parseLong(String value, long min) throws NumberFormatException {
+		long number = Long.parseLong(value);
+		if (number < min)
+			throw new NumberFormatException(value + " is below " + min);
+		return number;
+	}
+
+	/**
+	 * @param value
+	 *            The value of an option
+	 * @param min
+	 *            The lowest valid value
+	 * @return The value as a double, which can be infinite but not NaN
+	 * @throws NumberFormatException
+	 *             If the value is not a number or is below min
+	 */
+	private static double parseDouble(String value, double min) throws NumberFormatException {
+		double number = Double.parseDouble(value);
+		if (!(number >= min))
+			throw new NumberFormatException(value + " is below " + min);
+		return number;
+	}
+
 }